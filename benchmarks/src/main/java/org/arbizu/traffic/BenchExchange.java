@@ -0,0 +1,135 @@
+package org.arbizu.traffic;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * An exchange with no connection behind it, so handlers can be driven without the
+ * server and its sockets.  The response body is counted and discarded.
+ * @author alan
+ */
+class BenchExchange extends HttpExchange {
+	private static final InetSocketAddress LOCAL = InetSocketAddress.createUnresolved("localhost", 8080);
+	private final Headers requestHeaders = new Headers();
+	private final Headers responseHeaders = new Headers();
+	private final URI uri;
+	private final CountingStream body = new CountingStream();
+	private int status = -1;
+
+	private static class CountingStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			++count;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	/**
+	 * @param pathAndQuery e.g. {@code /t?check}
+	 * @param gzip whether the request offers {@code Accept-Encoding: gzip}
+	 */
+	BenchExchange(String pathAndQuery, boolean gzip) {
+		this.uri = URI.create(pathAndQuery);
+		if (gzip) {
+			requestHeaders.set("Accept-Encoding", "gzip");
+		}
+	}
+
+	/** bytes written as the response body */
+	long bodyBytes() {
+		return body.count;
+	}
+
+	@Override
+	public Headers getRequestHeaders() {
+		return requestHeaders;
+	}
+
+	@Override
+	public Headers getResponseHeaders() {
+		return responseHeaders;
+	}
+
+	@Override
+	public URI getRequestURI() {
+		return uri;
+	}
+
+	@Override
+	public String getRequestMethod() {
+		return "GET";
+	}
+
+	@Override
+	public HttpContext getHttpContext() {
+		return null;
+	}
+
+	@Override
+	public void close() { }
+
+	@Override
+	public InputStream getRequestBody() {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+
+	@Override
+	public OutputStream getResponseBody() {
+		return body;
+	}
+
+	@Override
+	public void sendResponseHeaders(int rCode, long responseLength) {
+		this.status = rCode;
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() {
+		return LOCAL;
+	}
+
+	@Override
+	public int getResponseCode() {
+		return status;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return LOCAL;
+	}
+
+	@Override
+	public String getProtocol() {
+		return "HTTP/1.1";
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return null;
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) { }
+
+	@Override
+	public void setStreams(InputStream i, OutputStream o) { }
+
+	@Override
+	public HttpPrincipal getPrincipal() {
+		return null;
+	}
+}
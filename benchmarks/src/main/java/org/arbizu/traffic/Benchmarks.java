@@ -0,0 +1,25 @@
+package org.arbizu.traffic;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the gc profiler, so every stage reports its allocation
+ * rate ({@code gc.alloc.rate.norm}, bytes per operation) next to its throughput.
+ * Takes the usual JMH arguments, e.g. {@code History -p sensors=128 -rf json}.
+ * @author alan
+ */
+public class Benchmarks {
+	private Benchmarks() { }
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,108 @@
+package org.arbizu.traffic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.Files;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The stages of {@link DataSource#collect()} after the fetch: parsing the feed, from
+ * memory and from a file, then naming and serializing the corridors; plus the
+ * {@link DataSource.TrafficDatumTypeAdapter} and the metadata parse behind
+ * {@link SensorNameCache}.
+ * @author alan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FeedBenchmark {
+	/** the built-in 10 sensor corridor, or every sensor in the feed */
+	@Param({ "default", "all" })
+	public String registry;
+
+	private byte[] feed;
+	private File feedFile;
+	private AutoflushingLogger logger;
+	private SpeedFeedParser parser;
+	private DataSource source;
+	private TrafficDatum[] parsed;
+	private int[] slots;
+
+	@Setup
+	public void setUp() throws Exception {
+		feed = Fixtures.feed();
+		feedFile = new File("target/bench-feed.json");
+		Files.createParentDirs(feedFile);
+		Files.write(feed, feedFile);
+		logger = Fixtures.logger();
+		SensorRegistry sensors = Fixtures.registry(registry);
+		parser = SpeedFeedParser.create(sensors);
+		source = new DataSource(logger, sensors, SensorNameCache.create(logger));
+		parsed = parse();
+		source.corridors(parsed);
+		slots = sensors.slotsOf(sensors.corridorNames().iterator().next());
+	}
+
+	@Benchmark
+	public TrafficDatum[] parse() throws IOException {
+		return parser.parse(new InputStreamReader(new ByteArrayInputStream(feed), StandardCharsets.UTF_8));
+	}
+
+	@Benchmark
+	public TrafficDatum[] parseFile() throws Exception {
+		return FileDataReader.create(feedFile.getPath(), logger).stream(parser::parse);
+	}
+
+	/** naming and serializing every corridor, what collect does once the feed is parsed */
+	@Benchmark
+	public LinkedHashMap<String, byte[]> corridors() {
+		return source.corridors(parsed);
+	}
+
+	@Benchmark
+	public byte[] toJson() {
+		return source.toJson(parsed, slots);
+	}
+
+	@Benchmark
+	public byte[] typeAdapter() throws IOException {
+		DataSource.TrafficDatumTypeAdapter adapter = new DataSource.TrafficDatumTypeAdapter();
+		ByteArrayOutputStream b = new ByteArrayOutputStream(1024);
+		try (JsonWriter w = new JsonWriter(new OutputStreamWriter(b, StandardCharsets.UTF_8))) {
+			w.beginArray();
+			for (int slot : slots) {
+				adapter.write(w, parsed[slot]);
+			}
+			w.endArray();
+		}
+		return b.toByteArray();
+	}
+
+	/** the bundled region metadata, as parsed at startup when there's no name snapshot */
+	@Benchmark
+	public String[] metadata() {
+		return SensorNameCache.create(logger).names();
+	}
+}
@@ -0,0 +1,131 @@
+package org.arbizu.traffic;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Inputs shared by the benchmarks: the checked-in feed, the bundled region metadata
+ * and generated month-long segments.
+ *
+ * Everything a benchmark writes goes under {@code target/}: the history store
+ * ({@value DataLogger#DIR_PROPERTY}), the sensor name snapshot and the log.  The
+ * properties are set here, before anything reads them, unless given on the command
+ * line.  The name cache never revalidates, so no benchmark touches the network.
+ * @author alan
+ */
+class Fixtures {
+	static final String FEED = "/fixtures/NoCalData.json";
+	/** the generated month, a closed one so reads never come from {@link LiveSeries} */
+	static final String MONTH = "09-2026";
+	static final int FEED_SENSORS = 4506;
+	static final int SAMPLE_SECONDS = 900;
+	static final int DAYS = 30;
+
+	static {
+		defaultProperty(DataLogger.DIR_PROPERTY, "target/bench-logs");
+		defaultProperty(SensorNameCache.SNAPSHOT_PROPERTY, "target/bench-sensor-names.json");
+		defaultProperty(SensorNameCache.REVALIDATE_PROPERTY, String.valueOf(Long.MAX_VALUE));
+	}
+
+	private Fixtures() { }
+
+	private static void defaultProperty(String name, String value) {
+		if (System.getProperty(name) == null) {
+			System.setProperty(name, value);
+		}
+	}
+
+	static byte[] resource(String name) throws IOException {
+		try (InputStream in = Fixtures.class.getResourceAsStream(name)) {
+			if (in == null) {
+				throw new IOException("missing fixture " + name);
+			}
+			return ByteStreams.toByteArray(in);
+		}
+	}
+
+	static byte[] feed() throws IOException {
+		return resource(FEED);
+	}
+
+	/**
+	 * @param name {@code default} for the built-in corridor, {@code all} for one corridor
+	 * holding every sensor in the feed
+	 */
+	static SensorRegistry registry(String name) {
+		if ("default".equals(name)) {
+			return SensorRegistry.defaults();
+		}
+		StringBuilder all = new StringBuilder("all=0");
+		for (int sensor = 1; sensor < FEED_SENSORS; ++sensor) {
+			all.append(',').append(sensor);
+		}
+		return SensorRegistry.parse(Collections.singletonList(all.toString()));
+	}
+
+	/**
+	 * @return the fixture feed parsed for {@code registry}
+	 */
+	static TrafficDatum[] parse(SensorRegistry registry) throws IOException {
+		return SpeedFeedParser.create(registry).parse(new InputStreamReader(new ByteArrayInputStream(feed()), StandardCharsets.UTF_8));
+	}
+
+	static AutoflushingLogger logger() {
+		Logger l = Logger.getLogger("org.arbizu.traffic.bench");
+		l.setUseParentHandlers(false);
+		new File("target").mkdirs();
+		return new AutoflushingLogger(l, "bench", "target/bench.log");
+	}
+
+	static String key(int sensor) {
+		return MONTH + "-" + sensor;
+	}
+
+	static long monthStart() {
+		return LocalDateTime.of(2026, 9, 1, 0, 0).atZone(ZoneId.systemDefault()).toEpochSecond();
+	}
+
+	static long monthEnd() {
+		return monthStart() + DAYS * 86400L - 1;
+	}
+
+	/**
+	 * Write a month of 15 minute samples, with rollups, for sensors {@code 0..sensors-1}
+	 * that don't have one yet.  Speeds are seeded by sensor, so every run sees the same data.
+	 */
+	static void months(int sensors) throws IOException {
+		for (int sensor = 0; sensor < sensors; ++sensor) {
+			String key = key(sensor);
+			File file = SegmentFormat.CSV.pathFor(key).toFile();
+			if (file.isFile() && Rollup.exists(Rollup.Resolution.DAILY, key)) {
+				continue;
+			}
+			file.delete(); // and whatever was derived from it
+			SparseTimeIndex.indexPath(file.toPath()).toFile().delete();
+			for (Rollup.Resolution r : Rollup.Resolution.values()) {
+				r.pathFor(key).toFile().delete();
+			}
+			Files.createParentDirs(file);
+			Random random = new Random(sensor);
+			int speed = 60;
+			try (SegmentWriter writer = Rollup.rollingUp(key, SegmentFormat.CSV.open(file))) {
+				for (long t = monthStart(); t <= monthEnd(); t += SAMPLE_SECONDS) {
+					speed = Math.max(0, Math.min(80, speed + random.nextInt(11) - 5));
+					writer.append(t, speed, null);
+				}
+			}
+		}
+	}
+}
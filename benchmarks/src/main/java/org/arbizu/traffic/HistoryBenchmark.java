@@ -0,0 +1,110 @@
+package org.arbizu.traffic;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * History reads over generated month-long CSV segments, with their indexes and
+ * rollups: a whole month from disk and from the {@code /r} cache, and range
+ * queries over every sensor, raw and rolled up.
+ * @author alan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryBenchmark {
+	/** how many sensors have a month of history */
+	@Param({ "1", "16", "128" })
+	public int sensors;
+
+	private HttpHandler handler;
+	private String sensorList;
+	private long dayFrom;
+	private long dayTo;
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException {
+		Fixtures.months(sensors);
+		handler = TrafficHistoryFileRequestHandler.create();
+		StringBuilder list = new StringBuilder("0");
+		for (int sensor = 1; sensor < sensors; ++sensor) {
+			list.append(',').append(sensor);
+		}
+		sensorList = list.toString();
+		dayFrom = Fixtures.monthStart() + 14 * 86400L;
+		dayTo = dayFrom + 86400L - 1;
+	}
+
+	/** the next sensor, round robin, so every segment is visited */
+	private int nextSensor() {
+		next = (next + 1) % sensors;
+		return next;
+	}
+
+	/** {@link TrafficHistoryFileRequestHandler#loadFromFilesystem}, what a cache miss costs */
+	@Benchmark
+	public ResponseBody loadMonth() throws IOException {
+		return TrafficHistoryFileRequestHandler.loadFromFilesystem(Fixtures.key(nextSensor()));
+	}
+
+	/** {@code /r?MM-yyyy-<id>&callback=}, served from the cache once warm */
+	@Benchmark
+	public long month() throws IOException {
+		BenchExchange t = new BenchExchange("/r?" + Fixtures.key(nextSensor()) + "&callback=cb", true);
+		handler.handle(t);
+		return t.bodyBytes();
+	}
+
+	/** a day of raw samples for every sensor, straight from the store */
+	@Benchmark
+	public int readDay() throws IOException {
+		int points = 0;
+		for (int sensor = 0; sensor < sensors; ++sensor) {
+			points += HistoryStore.read(sensor, dayFrom, dayTo).size();
+		}
+		return points;
+	}
+
+	/** a day for every sensor through {@code /r}, raw */
+	@Benchmark
+	public long rangeDay() throws IOException {
+		BenchExchange t = new BenchExchange("/r?sensors=" + sensorList + "&from=" + dayFrom + "&to=" + dayTo, true);
+		handler.handle(t);
+		return t.bodyBytes();
+	}
+
+	/** the month for every sensor through {@code /r}, which picks a rollup */
+	@Benchmark
+	public long rangeMonth() throws IOException {
+		BenchExchange t = new BenchExchange("/r?sensors=" + sensorList + "&from=" + Fixtures.monthStart()
+				+ "&to=" + Fixtures.monthEnd(), true);
+		handler.handle(t);
+		return t.bodyBytes();
+	}
+
+	/** the month for every sensor as CSV, raw; streamed once it passes the point limit */
+	@Benchmark
+	public long rangeMonthRawCsv() throws IOException {
+		BenchExchange t = new BenchExchange("/r?sensors=" + sensorList + "&from=" + Fixtures.monthStart()
+				+ "&to=" + Fixtures.monthEnd() + "&resolution=raw&format=csv", true);
+		handler.handle(t);
+		return t.bodyBytes();
+	}
+}
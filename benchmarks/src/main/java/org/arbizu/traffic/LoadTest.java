@@ -0,0 +1,369 @@
+package org.arbizu.traffic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Splitter;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Load test: starts {@link Traffic} against a local {@link UpstreamStub}, drives a mix
+ * of {@code /t} and {@code /r} requests at it from concurrent clients, and prints
+ * throughput and latency percentiles as JSON.
+ *
+ * {@code java -cp target/benchmarks.jar org.arbizu.traffic.LoadTest}, configured with
+ * {@code traffic.loadtest.*} system properties:
+ * <ul>
+ *     <li>{@code clients}: concurrent clients, 16</li>
+ *     <li>{@code seconds}, {@code warmupSeconds}: measured and discarded run lengths, 30 and 5</li>
+ *     <li>{@code rate}: total requests per second, with latency counted from when each
+ *     request was due so a stalled server can't hide its backlog; 0 (the default) has
+ *     every client send its next request as soon as the last one is answered</li>
+ *     <li>{@code mix}: relative weights, {@value #DEFAULT_MIX}</li>
+ *     <li>{@code gzip}: whether clients offer gzip, true</li>
+ *     <li>{@code upstreamLatencyMs}, {@code upstreamFailureRate}: the stub's delay and
+ *     fraction of 503s, 200 and 0</li>
+ *     <li>{@code feeds}: a directory of saved {@code *.json} feeds for the stub to serve,
+ *     the fixture feed by default</li>
+ *     <li>{@code sensors}: sensors with a generated month of history for {@code /r}, 16</li>
+ *     <li>{@code out}: also write the summary to this file</li>
+ * </ul>
+ * The server runs in this process, so leave it cores of its own; server settings such
+ * as {@code traffic.server.threads} are passed through as usual.
+ * @author alan
+ */
+public class LoadTest {
+	private static final String PREFIX = "traffic.loadtest.";
+	static final String DEFAULT_MIX = "check=50,checkjs=30,force=1,month=10,range=9";
+	private static final double[] PERCENTILES = { 0.5, 0.99, 0.999 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p99", "p999" };
+	private static final int RANGE_SENSORS = 4;
+
+	/**
+	 * The requests in the mix
+	 */
+	private enum Kind {
+		CHECK, CHECKJS, FORCE, MONTH, RANGE;
+
+		String path(int sensors) {
+			int sensor = ThreadLocalRandom.current().nextInt(sensors);
+			switch (this) {
+				case CHECK:
+					return "/t?check";
+				case CHECKJS:
+					return "/t?checkjs&callback=cb";
+				case FORCE:
+					return "/t?force";
+				case MONTH:
+					return "/r?" + Fixtures.key(sensor) + "&callback=cb";
+				default:
+					long from = Fixtures.monthStart() + ThreadLocalRandom.current().nextInt(Fixtures.DAYS - 1) * 86400L;
+					StringBuilder path = new StringBuilder("/r?sensors=").append(sensor);
+					for (int i = 1; i < Math.min(RANGE_SENSORS, sensors); ++i) {
+						path.append(',').append((sensor + i) % sensors);
+					}
+					return path.append("&from=").append(from).append("&to=").append(from + 86399).toString();
+			}
+		}
+
+		String label() {
+			return name().toLowerCase();
+		}
+	}
+
+	/**
+	 * One client's latencies for one kind of request, in microseconds
+	 */
+	private static class Recording {
+		long[] micros = new long[1024];
+		int count;
+		long errors;
+		long bytes;
+
+		void add(long value) {
+			if (count == micros.length) {
+				micros = Arrays.copyOf(micros, count * 2);
+			}
+			micros[count++] = value;
+		}
+
+		void addAll(Recording other) {
+			for (int i = 0; i < other.count; ++i) {
+				add(other.micros[i]);
+			}
+			errors += other.errors;
+			bytes += other.bytes;
+		}
+	}
+
+	private final int clients;
+	private final double rate;
+	private final Kind[] mix;
+	private final boolean gzip;
+	private final int sensors;
+	private final String base;
+
+	private LoadTest(int clients, double rate, Kind[] mix, boolean gzip, int sensors, int port) {
+		this.clients = clients;
+		this.rate = rate;
+		this.mix = mix;
+		this.gzip = gzip;
+		this.sensors = sensors;
+		this.base = "http://localhost:" + port;
+	}
+
+	/**
+	 * @return 1000 kinds in proportion to their weights, to pick from at random
+	 */
+	private static Kind[] parseMix(String mix) {
+		Map<Kind, Integer> weights = new EnumMap<>(Kind.class);
+		int total = 0;
+		for (Map.Entry<String, String> e : Splitter.on(',').trimResults().omitEmptyStrings()
+				.withKeyValueSeparator('=').split(mix).entrySet()) {
+			int weight = Integer.parseInt(e.getValue().trim());
+			weights.put(Kind.valueOf(e.getKey().trim().toUpperCase()), weight);
+			total += weight;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("no requests in mix " + mix);
+		}
+		List<Kind> kinds = new ArrayList<>();
+		for (Map.Entry<Kind, Integer> e : weights.entrySet()) {
+			for (int i = 0; i < Math.round(1000.0 * e.getValue() / total); ++i) {
+				kinds.add(e.getKey());
+			}
+		}
+		return kinds.toArray(new Kind[0]);
+	}
+
+	/**
+	 * Run every client for {@code seconds}
+	 * @return the clients' recordings merged per kind
+	 */
+	private Map<Kind, Recording> run(long seconds) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		List<Future<Map<Kind, Recording>>> results = new ArrayList<>();
+		for (int c = 0; c < clients; ++c) {
+			int client = c;
+			results.add(pool.submit(() -> client(client, start, end)));
+		}
+		Map<Kind, Recording> merged = new EnumMap<>(Kind.class);
+		for (Future<Map<Kind, Recording>> result : results) {
+			for (Map.Entry<Kind, Recording> e : result.get().entrySet()) {
+				merged.computeIfAbsent(e.getKey(), k -> new Recording()).addAll(e.getValue());
+			}
+		}
+		pool.shutdown();
+		return merged;
+	}
+
+	private Map<Kind, Recording> client(int client, long start, long end) {
+		Map<Kind, Recording> recordings = new EnumMap<>(Kind.class);
+		byte[] buffer = new byte[8192];
+		long interval = (rate > 0) ? (long) (TimeUnit.SECONDS.toNanos(clients) / rate) : 0;
+		long due = start + interval * client / clients; // spread the clients' schedules
+		while (true) {
+			if (interval > 0) {
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					sleepNanos(wait);
+				}
+			} else {
+				due = System.nanoTime();
+			}
+			if (due >= end) {
+				return recordings;
+			}
+			Kind kind = mix[ThreadLocalRandom.current().nextInt(mix.length)];
+			Recording recording = recordings.computeIfAbsent(kind, k -> new Recording());
+			try {
+				recording.bytes += request(kind.path(sensors), buffer);
+			} catch (IOException e) {
+				++recording.errors;
+			}
+			recording.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+			due += interval;
+		}
+	}
+
+	/**
+	 * @return the body's length on the wire
+	 * @throws IOException for a failed request or an error status
+	 */
+	private long request(String path, byte[] buffer) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(base + path).openConnection();
+		if (gzip) {
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+		}
+		int status = connection.getResponseCode();
+		InputStream body = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+		long length = 0;
+		if (body != null) {
+			try (InputStream in = body) {
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					length += n;
+				}
+			}
+		}
+		if (status >= 400) {
+			throw new IOException("status " + status + " for " + path);
+		}
+		return length;
+	}
+
+	private static void sleepNanos(long nanos) {
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void summarize(JsonWriter w, Recording r, long seconds) throws IOException {
+		long[] sorted = Arrays.copyOf(r.micros, r.count);
+		Arrays.sort(sorted);
+		w.name("requests").value(r.count);
+		w.name("errors").value(r.errors);
+		w.name("throughput").value((double) r.count / seconds);
+		w.name("bytes").value(r.bytes);
+		w.name("latencyMs").beginObject();
+		for (int i = 0; i < PERCENTILES.length; ++i) {
+			w.name(PERCENTILE_NAMES[i]).value(millis(percentile(sorted, PERCENTILES[i])));
+		}
+		w.name("max").value(millis((sorted.length > 0) ? sorted[sorted.length - 1] : 0));
+		w.endObject();
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000.0;
+	}
+
+	private static List<byte[]> feeds(String dir) throws IOException {
+		List<byte[]> feeds = new ArrayList<>();
+		if (dir != null) {
+			File[] files = new File(dir).listFiles((d, name) -> name.endsWith(".json"));
+			if (files == null || files.length == 0) {
+				throw new IOException("no *.json feeds in " + dir);
+			}
+			Arrays.sort(files);
+			for (File f : files) {
+				feeds.add(Files.readAllBytes(f.toPath()));
+			}
+		} else {
+			feeds.add(Fixtures.feed());
+		}
+		return feeds;
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	public static void main(String... args) {
+		try {
+			execute();
+			System.exit(0);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1); // the server's threads would keep us up
+		}
+	}
+
+	private static void execute() throws Exception {
+		int clients = Integer.getInteger(PREFIX + "clients", 16);
+		long seconds = Long.getLong(PREFIX + "seconds", 30);
+		long warmupSeconds = Long.getLong(PREFIX + "warmupSeconds", 5);
+		double rate = Double.parseDouble(System.getProperty(PREFIX + "rate", "0"));
+		String mix = System.getProperty(PREFIX + "mix", DEFAULT_MIX);
+		boolean gzip = Boolean.parseBoolean(System.getProperty(PREFIX + "gzip", "true"));
+		long upstreamLatency = Long.getLong(PREFIX + "upstreamLatencyMs", 200);
+		double upstreamFailures = Double.parseDouble(System.getProperty(PREFIX + "upstreamFailureRate", "0"));
+		int sensors = Integer.getInteger(PREFIX + "sensors", 16);
+		String out = System.getProperty(PREFIX + "out");
+
+		Fixtures.months(sensors);
+		int port = freePort();
+		System.setProperty("traffic.server.port", String.valueOf(port)); // before Traffic is loaded
+		Traffic.configureHttpServer(); // before the stub's server fixes them
+		UpstreamStub stub = UpstreamStub.start(feeds(System.getProperty(PREFIX + "feeds")),
+				Fixtures.resource(DataSource.SourceType.METADATA.getFallback()), upstreamLatency, upstreamFailures);
+		System.setProperty(DataSource.DATA_URL_PROPERTY, stub.dataUrl());
+		System.setProperty(DataSource.METADATA_URL_PROPERTY, stub.metadataUrl());
+		Traffic.main();
+
+		LoadTest test = new LoadTest(clients, rate, parseMix(mix), gzip, sensors, port);
+		test.request("/t?check", new byte[8192]); // the first snapshot load
+		test.run(warmupSeconds);
+		long upstreamBefore = stub.requests();
+		long failuresBefore = stub.failures();
+		Map<Kind, Recording> results = test.run(seconds);
+
+		Recording all = new Recording();
+		results.values().forEach(all::addAll);
+		StringWriter summary = new StringWriter();
+		try (JsonWriter w = new JsonWriter(summary)) {
+			w.setIndent("  ");
+			w.beginObject();
+			w.name("clients").value(clients);
+			w.name("rate").value(rate);
+			w.name("mix").value(mix);
+			w.name("gzip").value(gzip);
+			w.name("seconds").value(seconds);
+			summarize(w, all, seconds);
+			w.name("byRequest").beginObject();
+			for (Map.Entry<Kind, Recording> e : results.entrySet()) {
+				w.name(e.getKey().label()).beginObject();
+				summarize(w, e.getValue(), seconds);
+				w.endObject();
+			}
+			w.endObject();
+			w.name("upstream").beginObject();
+			w.name("latencyMs").value(upstreamLatency);
+			w.name("failureRate").value(upstreamFailures);
+			w.name("requests").value(stub.requests() - upstreamBefore);
+			w.name("failures").value(stub.failures() - failuresBefore);
+			w.endObject();
+			w.endObject();
+		}
+		System.out.println(summary);
+		if (out != null) {
+			try (Writer file = new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8)) {
+				file.write(summary.toString());
+				file.write(System.lineSeparator());
+			}
+		}
+		stub.close();
+	}
+}
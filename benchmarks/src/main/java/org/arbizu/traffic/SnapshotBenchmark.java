@@ -0,0 +1,89 @@
+package org.arbizu.traffic;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What {@link Checker} and {@link TrafficRequestHandler} do with collected corridors:
+ * wrapping them once per load into a {@link TrafficSnapshot}, then sending the
+ * prepared bodies for {@code check}, {@code checkjs&callback=} and a revalidation.
+ * @author alan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotBenchmark {
+	private static final byte[] CALLBACK = "callback(".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] CALLBACK_END = ");".getBytes(StandardCharsets.UTF_8);
+
+	/** the built-in 10 sensor corridor, or every sensor in the feed */
+	@Param({ "default", "all" })
+	public String registry;
+
+	/** whether requests offer gzip */
+	@Param({ "true", "false" })
+	public boolean gzip;
+
+	private Map<String, byte[]> corridors;
+	private TrafficSnapshot.Payload payload;
+	private String etag;
+
+	@Setup
+	public void setUp() throws Exception {
+		AutoflushingLogger logger = Fixtures.logger();
+		SensorRegistry sensors = Fixtures.registry(registry);
+		DataSource source = new DataSource(logger, sensors, SensorNameCache.create(logger));
+		TrafficDatum[] data = Fixtures.parse(sensors);
+		corridors = source.corridors(data);
+		payload = TrafficSnapshot.create(corridors).get(null);
+		BenchExchange first = new BenchExchange("/t?check", gzip);
+		payload.array().send(first);
+		etag = first.getResponseHeaders().getFirst("ETag");
+	}
+
+	/** one snapshot load's wrapping, hashing and compression */
+	@Benchmark
+	public TrafficSnapshot create() {
+		return TrafficSnapshot.create(corridors);
+	}
+
+	@Benchmark
+	public long check() throws IOException {
+		BenchExchange t = new BenchExchange("/t?check", gzip);
+		payload.array().send(t);
+		return t.bodyBytes();
+	}
+
+	@Benchmark
+	public long checkjs() throws IOException {
+		BenchExchange t = new BenchExchange("/t?checkjs&callback=callback", gzip);
+		payload.object().send(t, CALLBACK, CALLBACK_END);
+		return t.bodyBytes();
+	}
+
+	/** a client revalidating the body it has, answered with a 304 */
+	@Benchmark
+	public int notModified() throws IOException {
+		BenchExchange t = new BenchExchange("/t?check", gzip);
+		t.getRequestHeaders().set("If-None-Match", etag);
+		payload.array().send(t);
+		return t.getResponseCode();
+	}
+}
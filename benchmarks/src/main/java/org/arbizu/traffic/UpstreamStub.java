@@ -0,0 +1,152 @@
+package org.arbizu.traffic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.hash.Hashing;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the upstream site: serves saved feeds in rotation, and the
+ * region metadata with an {@code ETag} so revalidation gets 304s, after a fixed
+ * latency and failing a given fraction of requests with a 503.  Bodies are gzipped
+ * once up front, as the real site sends them.
+ * @author alan
+ */
+class UpstreamStub implements Closeable {
+	static final String DATA_PATH = "/Data/NoCal/1~j/NoCalData.json";
+	static final String METADATA_PATH = "/Zip/RegionInfo/NoCalStatic.js";
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final List<byte[]> feeds = new ArrayList<>();
+	private final byte[] metadata;
+	private final String metadataTag;
+	private final long latencyMillis;
+	private final double failureRate;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	private UpstreamStub(List<byte[]> feeds, byte[] metadata, long latencyMillis, double failureRate) throws IOException {
+		for (byte[] feed : feeds) {
+			this.feeds.add(gzip(feed));
+		}
+		this.metadata = gzip(metadata);
+		this.metadataTag = '"' + Hashing.murmur3_128().hashBytes(metadata).toString() + '"';
+		this.latencyMillis = latencyMillis;
+		this.failureRate = failureRate;
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 64);
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "upstream-stub");
+			t.setDaemon(true);
+			return t;
+		});
+		server.createContext(DATA_PATH, this::feed);
+		server.createContext(METADATA_PATH, this::metadata);
+		server.setExecutor(executor);
+	}
+
+	/**
+	 * @param feeds feed bodies, served in turn
+	 * @param failureRate fraction of requests, 0 to 1, answered with a 503
+	 */
+	static UpstreamStub start(List<byte[]> feeds, byte[] metadata, long latencyMillis, double failureRate) throws IOException {
+		UpstreamStub stub = new UpstreamStub(feeds, metadata, latencyMillis, failureRate);
+		stub.server.start();
+		return stub;
+	}
+
+	String dataUrl() {
+		return base() + DATA_PATH;
+	}
+
+	String metadataUrl() {
+		return base() + METADATA_PATH;
+	}
+
+	private String base() {
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	long requests() {
+		return requests.get();
+	}
+
+	long failures() {
+		return failures.get();
+	}
+
+	private void feed(HttpExchange t) throws IOException {
+		long n = requests.getAndIncrement();
+		if (delayAndMaybeFail(t)) {
+			return;
+		}
+		send(t, feeds.get((int) (n % feeds.size())));
+	}
+
+	private void metadata(HttpExchange t) throws IOException {
+		requests.incrementAndGet();
+		if (delayAndMaybeFail(t)) {
+			return;
+		}
+		t.getResponseHeaders().set("ETag", metadataTag);
+		if (metadataTag.equals(t.getRequestHeaders().getFirst("If-None-Match"))) {
+			t.sendResponseHeaders(304, -1);
+			t.close();
+			return;
+		}
+		send(t, metadata);
+	}
+
+	/**
+	 * @return true if the request was failed
+	 */
+	private boolean delayAndMaybeFail(HttpExchange t) throws IOException {
+		try {
+			TimeUnit.MILLISECONDS.sleep(latencyMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (ThreadLocalRandom.current().nextDouble() < failureRate) {
+			failures.incrementAndGet();
+			t.sendResponseHeaders(503, -1);
+			t.close();
+			return true;
+		}
+		return false;
+	}
+
+	private static void send(HttpExchange t, byte[] gzipped) throws IOException {
+		t.getResponseHeaders().set("Content-Encoding", "gzip");
+		t.sendResponseHeaders(200, gzipped.length);
+		try (OutputStream os = t.getResponseBody()) {
+			os.write(gzipped);
+		}
+	}
+
+	private static byte[] gzip(byte[] body) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream(body.length / 4);
+		try (GZIPOutputStream out = new GZIPOutputStream(b)) {
+			out.write(body);
+		}
+		return b.toByteArray();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
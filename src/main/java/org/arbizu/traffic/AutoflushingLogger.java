@@ -3,18 +3,63 @@ package org.arbizu.traffic;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.*;
 
 /**
  * Wrap a Logger with a designated source and auto-flush logging
+ *
+ * By default records are handed to a background writer through a bounded queue, so the
+ * caller only builds the {@link LogRecord}: the writer formats them in batches and flushes
+ * once {@value #FLUSH_RECORDS_PROPERTY} records are waiting or {@value #FLUSH_MILLIS_PROPERTY}
+ * ms have passed.  Configured with:
+ * <ul>
+ *     <li>{@value #MODE_PROPERTY}: {@code async} (the default), or {@code sync} to format and
+ *     flush every record on the caller's thread</li>
+ *     <li>{@value #QUEUE_PROPERTY}: queue capacity, in records; when it's full a record is
+ *     dropped and counted, and the count is logged once the writer catches up</li>
+ * </ul>
+ * A {@code SEVERE} record waits until it has been flushed, and waits for room rather than being
+ * dropped.  Whatever is queued is flushed at shutdown.
  * Created by alan on 3/11/17.
  */
 class AutoflushingLogger  {
+    static final String MODE_PROPERTY = "traffic.log.mode";
+    static final String QUEUE_PROPERTY = "traffic.log.queue";
+    static final String FLUSH_RECORDS_PROPERTY = "traffic.log.flushRecords";
+    static final String FLUSH_MILLIS_PROPERTY = "traffic.log.flushMillis";
+    private static final int BATCH_SIZE = 64;
+    private static final long SEVERE_WAIT_SECONDS = 5;
+    private static final Metrics.Counter DROPPED = Metrics.counter("traffic_log_dropped_total",
+            "Application log records dropped because the log queue was full");
     private final Logger logger;
     private Handler handler;
     private final String sourceName;
-    
-    
+    private final BlockingQueue<Entry> queue;
+    private final int flushRecords;
+    private final long flushMillis;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * A record to write, or none for a flush request; whoever waits on the latch is
+     * released once the entry has been flushed
+     */
+    private static class Entry {
+        final LogRecord record;
+        final CountDownLatch flushed;
+
+        Entry(LogRecord record, CountDownLatch flushed) {
+            this.record = record;
+            this.flushed = flushed;
+        }
+    }
+
     AutoflushingLogger(Logger logger, String source, String logFileName) {
         this.logger = logger;
         this.sourceName = source;
@@ -24,25 +69,135 @@ class AutoflushingLogger  {
         } catch (IOException iox) {
             System.err.println("couldn't customize handler, using default" + iox);
         }
+        this.flushRecords = Integer.getInteger(FLUSH_RECORDS_PROPERTY, 256);
+        this.flushMillis = Long.getLong(FLUSH_MILLIS_PROPERTY, 1000);
+        if ("sync".equalsIgnoreCase(System.getProperty(MODE_PROPERTY))) {
+            this.queue = null;
+        } else {
+            this.queue = new ArrayBlockingQueue<>(Integer.getInteger(QUEUE_PROPERTY, 4096));
+            Thread writer = new Thread(this::drain, "log-writer");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "log-shutdown"));
+        }
     }
-    
+
     private Handler getHandler() {
         return this.handler;
     }
-    
+
     private String getSource() {
         return this.sourceName;
     }
-    
+
     private void log(String source, Level level, String msg, Object[] params) {
         LogRecord lr = new LogRecord(level, msg);
         lr.setParameters(params);
         lr.setSourceClassName(source);
-        logger.log(lr);
-        getHandler().flush();
+        if (queue == null) {
+            logger.log(lr);
+            flushHandler();
+        } else if (level.intValue() >= Level.SEVERE.intValue()) {
+            enqueueAndWait(lr);
+        } else if (!queue.offer(new Entry(lr, null))) {
+            DROPPED.inc();
+            dropped.incrementAndGet();
+        }
     }
-    
+
     void log(Level level, String msg, Object[] params) {
         log(getSource(), level, msg, params);
     }
+
+    /**
+     * Write and flush everything queued so far
+     */
+    void flush() {
+        if (queue == null) {
+            flushHandler();
+        } else {
+            enqueueAndWait(null);
+        }
+    }
+
+    /**
+     * Queue behind what's already waiting, then wait until the writer has flushed it; bounded,
+     * so a stalled writer can't hold the caller forever
+     */
+    private void enqueueAndWait(LogRecord record) {
+        CountDownLatch flushed = new CountDownLatch(1);
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SEVERE_WAIT_SECONDS);
+            if (queue.offer(new Entry(record, flushed), SEVERE_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                flushed.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } else if (record != null) {
+                DROPPED.inc();
+                dropped.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        List<CountDownLatch> waiting = new ArrayList<>();
+        long reportedDrops = 0;
+        int unflushed = 0;
+        long lastFlush = System.nanoTime();
+        while (true) {
+            Entry first;
+            try {
+                first = queue.poll(flushMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first != null) {
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (Entry entry : batch) {
+                    if (entry.record != null) {
+                        write(entry.record);
+                        ++unflushed;
+                    }
+                    if (entry.flushed != null) {
+                        waiting.add(entry.flushed);
+                    }
+                }
+                batch.clear();
+            }
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                write(new LogRecord(Level.WARNING, "log queue full, " + (drops - reportedDrops) + " records dropped"));
+                ++unflushed;
+                reportedDrops = drops;
+            }
+            long now = System.nanoTime();
+            if (!waiting.isEmpty() || unflushed >= flushRecords
+                    || (unflushed > 0 && now - lastFlush >= TimeUnit.MILLISECONDS.toNanos(flushMillis))) {
+                flushHandler();
+                unflushed = 0;
+                lastFlush = now;
+                waiting.forEach(CountDownLatch::countDown);
+                waiting.clear();
+            }
+        }
+    }
+
+    private void write(LogRecord record) {
+        if (record.getSourceClassName() == null) {
+            record.setSourceClassName(getSource());
+        }
+        try {
+            logger.log(record);
+        } catch (RuntimeException e) {
+            System.err.println("log record lost: " + e);
+        }
+    }
+
+    private void flushHandler() {
+        if (getHandler() != null) {
+            getHandler().flush();
+        }
+    }
 }
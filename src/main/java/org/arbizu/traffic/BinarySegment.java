@@ -0,0 +1,242 @@
+package org.arbizu.traffic;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed-width binary segment: one sensor, one month.  A 16 byte header is followed
+ * by 8 byte records of
+ * <pre>
+ *   int   epoch seconds (unsigned)
+ *   short speed
+ *   short incident reference, 0 for none
+ * </pre>
+ * so record {@code n} is at a known offset and a month of 15 minute samples is
+ * about 23KB against roughly 70KB of CSV.  Incident text is stored once in a
+ * {@value #INCIDENTS_EXT} side file, one per line, and referenced by line number.
+ * Reads map the file.  A partially written trailing record is ignored.
+ *
+ * Run {@code main} with a segment path to export it as the original CSV.
+ *
+ * @author alan
+ */
+class BinarySegment {
+	static final String FILE_EXT = ".tsb";
+	static final String INCIDENTS_EXT = ".inc";
+	static final int HEADER_SIZE = 16;
+	static final int RECORD_SIZE = 8;
+	private static final int MAGIC = 0x54534231; // "TSB1"
+	private static final short VERSION = 1;
+	private static final int NO_INCIDENT = 0;
+
+	private BinarySegment() { }
+
+	static Writer openWriter(File f) throws IOException {
+		return new Writer(f.toPath());
+	}
+
+	static Reader openReader(Path path) throws IOException {
+		return new Reader(path);
+	}
+
+	private static Path incidentsPath(Path segment) {
+		return segment.resolveSibling(segment.getFileName() + INCIDENTS_EXT);
+	}
+
+	/**
+	 * Appends records, buffering them until {@link #flush()}
+	 */
+	static class Writer implements SegmentWriter {
+		private final FileChannel channel;
+		private final Path incidentsPath;
+		private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 512);
+		private Map<String, Integer> incidentRefs;
+		private java.io.Writer incidentWriter;
+
+		private Writer(Path path) throws IOException {
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.incidentsPath = incidentsPath(path);
+			if (channel.size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE);
+				header.rewind(); // the whole header, reserved bytes included
+				channel.write(header);
+			} else {
+				checkHeader(channel, path);
+				long partial = (channel.size() - HEADER_SIZE) % RECORD_SIZE;
+				if (partial != 0) {
+					channel.truncate(channel.size() - partial); // drop a torn record so the rest stay aligned
+				}
+			}
+			channel.position(channel.size());
+		}
+
+		@Override
+		public void append(long epochSeconds, int speed, String incident) throws IOException {
+			if (buffer.remaining() < RECORD_SIZE) {
+				flush();
+			}
+			buffer.putInt((int) epochSeconds);
+			buffer.putShort((short) speed);
+			buffer.putShort((short) incidentRef(incident));
+		}
+
+		private int incidentRef(String incident) throws IOException {
+			if (incident == null) {
+				return NO_INCIDENT;
+			}
+			if (incidentRefs == null) {
+				incidentRefs = new HashMap<>();
+				if (Files.exists(incidentsPath)) {
+					List<String> known = Files.readAllLines(incidentsPath, StandardCharsets.UTF_8);
+					for (int i = 0; i < known.size(); ++i) {
+						incidentRefs.put(known.get(i), i + 1);
+					}
+				}
+			}
+			String text = incident.replace('\n', ' ').replace('\r', ' ');
+			Integer ref = incidentRefs.get(text);
+			if (ref == null) {
+				ref = incidentRefs.size() + 1;
+				if (ref > 0xFFFF) {
+					return NO_INCIDENT; // table is full for this month; keep the speed, lose the text
+				}
+				if (incidentWriter == null) {
+					incidentWriter = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(incidentsPath,
+							StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+				}
+				incidentWriter.write(text);
+				incidentWriter.write('\n');
+				incidentRefs.put(text, ref);
+			}
+			return ref;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (incidentWriter != null) {
+				incidentWriter.flush(); // before the records that refer to it
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		@Override
+		public void sync() throws IOException {
+			flush();
+			channel.force(false);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				channel.close();
+				if (incidentWriter != null) incidentWriter.close();
+			}
+		}
+	}
+
+	/**
+	 * Random access over a mapped segment
+	 */
+	static class Reader {
+		private final MappedByteBuffer records;
+		private final Path incidentsPath;
+		private final int count;
+		private List<String> incidents;
+
+		private Reader(Path path) throws IOException {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				checkHeader(channel, path);
+				long size = channel.size();
+				this.count = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+				this.records = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) count * RECORD_SIZE);
+			}
+			this.incidentsPath = incidentsPath(path);
+		}
+
+		int count() {
+			return count;
+		}
+
+		long epochSeconds(int record) {
+			return Integer.toUnsignedLong(records.getInt(record * RECORD_SIZE));
+		}
+
+		int speed(int record) {
+			return records.getShort(record * RECORD_SIZE + 4);
+		}
+
+		/**
+		 * @return the record's incident text, or null if it has none
+		 */
+		String incident(int record) throws IOException {
+			int ref = Short.toUnsignedInt(records.getShort(record * RECORD_SIZE + 6));
+			if (ref == NO_INCIDENT) {
+				return null;
+			}
+			if (incidents == null) {
+				incidents = Files.exists(incidentsPath)
+						? Files.readAllLines(incidentsPath, StandardCharsets.UTF_8)
+						: new ArrayList<>();
+			}
+			return (ref <= incidents.size()) ? incidents.get(ref - 1) : null;
+		}
+
+		/**
+		 * Write the segment in the original {@code time,speed} CSV layout
+		 */
+		void exportCsv(Appendable out) throws IOException {
+			out.append(CsvSegmentWriter.HEADER).append(System.lineSeparator());
+			for (int i = 0; i < count; ++i) {
+				out.append(DataLogger.TIME_FORMAT.format(Instant.ofEpochSecond(epochSeconds(i))))
+						.append(',')
+						.append(Integer.toString(speed(i)))
+						.append(System.lineSeparator());
+			}
+		}
+	}
+
+	private static void checkHeader(FileChannel channel, Path path) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (header.hasRemaining()) {
+			if (channel.read(header, header.position()) < 0) {
+				throw new IOException("truncated segment header: " + path);
+			}
+		}
+		header.flip();
+		if (header.getInt() != MAGIC || header.getShort() != VERSION || header.getShort() != RECORD_SIZE) {
+			throw new IOException("not a version " + VERSION + " segment: " + path);
+		}
+	}
+
+	public static void main(String... args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: BinarySegment <segment" + FILE_EXT + ">  (CSV to stdout)");
+			System.exit(1);
+		}
+		try (java.io.Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) {
+			openReader(Paths.get(args[0])).exportCsv(out);
+		}
+	}
+}
@@ -1,93 +1,201 @@
 package org.arbizu.traffic;
 
-import java.io.ByteArrayOutputStream;
-import java.util.concurrent.ExecutionException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
 import com.google.common.util.concurrent.RateLimiter;
 
 /**
- * Handles access to Traffic results.  Use a LoadingCache with a TTL of 15 minutes
- * to preserve results.
+ * Handles access to Traffic results.  Use a LoadingCache to preserve results for
+ * 15 minutes.  Each load is one immutable {@link TrafficSnapshot} holding every
+ * corridor, a null corridor name selects the default (first configured) one.
+ *
+ * By default the cache refreshes ahead: once a snapshot is 15 minutes old the next
+ * request still gets it, while a new one is loaded on a dedicated thread.  A failed
+ * refresh keeps the last good snapshot and is retried after a backoff, a minute
+ * doubling up to 15, rather than by whichever request comes next.  Only the very first
+ * load blocks.
+ * Setting {@value #MODE_PROPERTY}=expire restores the old expire-and-block behavior.
  * 
  * @author alan
  */
 class Checker {
+	static final String MODE_PROPERTY = "traffic.cache.mode";
 	private static final String KEY = "92EastTrafficDataKey";
+	private static final long TTL_MINUTES = 15;
+	private static final long FIRST_RETRY_SECONDS = 60;
+	private static final Metrics.Family<Metrics.Counter> REFRESHES = Metrics.counters("traffic_snapshot_refreshes_total",
+			"Snapshot loads, by outcome", "outcome");
+	private static final Metrics.Counter REFRESHED = REFRESHES.labels("ok");
+	private static final Metrics.Counter REFRESH_FAILED = REFRESHES.labels("failed");
+	private static final Metrics.Counter FORCE_LIMITED = Metrics.counter("traffic_force_rate_limited_total",
+			"Forced reloads turned away by the rate limit, and served the current snapshot");
 	private final Traffic trafficData;
-	private LoadingCache<String,ByteArrayOutputStream> data;
+	private final AutoflushingLogger logger;
+	private final boolean refreshAhead;
+	private LoadingCache<String,TrafficSnapshot> data;
 	private final RateLimiter uncachedReadLimiter = RateLimiter.create((double) 1/60); // 1 permit every 60 seconds (0.167/sec)
+	private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "snapshot-refresh");
+		t.setDaemon(true);
+		return t;
+	});
+	private volatile RefreshOutcome lastRefreshOutcome = RefreshOutcome.NONE;
+	private volatile int failedRefreshes;
+	private final AtomicBoolean retryScheduled = new AtomicBoolean();
 	
-	private Checker(Traffic dataProvider) {
+	/**
+	 * How the latest load went, as sent in {@code X-Refresh-Status}; why one failed only goes to the log
+	 */
+	enum RefreshOutcome {
+		NONE, OK, FAILED;
+		
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+	
+	private Checker(Traffic dataProvider, boolean refreshAhead) {
 		this.trafficData = dataProvider;
+		this.logger = dataProvider.getLogger();
+		this.refreshAhead = refreshAhead;
 	}
 	
 	static Checker create(Traffic p) {
-		Checker c = new Checker(p);
+		Checker c = new Checker(p, !"expire".equalsIgnoreCase(System.getProperty(MODE_PROPERTY)));
 		c.initCache();
 		return c;
 	}
 	
 	private void initCache() {
-		data = CacheBuilder.newBuilder()
-				.maximumSize(1)
-				.expireAfterWrite(15, TimeUnit.MINUTES)
-				.build(new CacheLoader<String,ByteArrayOutputStream>() {
-					@Override
-					public ByteArrayOutputStream load(String key) throws Exception {
-						return trafficData.process();
+		CacheLoader<String,TrafficSnapshot> loader = new CacheLoader<String,TrafficSnapshot>() {
+			@Override
+			public TrafficSnapshot load(String key) throws Exception {
+				try {
+					TrafficSnapshot snapshot = TrafficSnapshot.create(trafficData.process());
+					recordRefresh(RefreshOutcome.OK);
+					failedRefreshes = 0;
+					REFRESHED.inc();
+					return snapshot;
+				} catch (Exception e) {
+					recordRefresh(RefreshOutcome.FAILED);
+					logger.log(Level.WARNING, "snapshot load failed: {0}", new Object[]{ e });
+					REFRESH_FAILED.inc();
+					throw e;
+				}
+			}
+
+			/**
+			 * Load on the refresh thread.  A failure hands back the old snapshot, which Guava
+			 * takes as a fresh write, so requests don't each start another upstream fetch while
+			 * it's down; the retry is scheduled instead.
+			 */
+			@Override
+			public ListenableFuture<TrafficSnapshot> reload(String key, TrafficSnapshot old) {
+				ListenableFutureTask<TrafficSnapshot> task = ListenableFutureTask.create(() -> {
+					try {
+						return load(key);
+					} catch (Exception e) {
+						scheduleRetry();
+						return old;
 					}
-					
 				});
+				refreshExecutor.execute(task);
+				return task;
+			}
+		};
+		CacheBuilder<Object,Object> builder = CacheBuilder.newBuilder().maximumSize(1).recordStats();
+		if (refreshAhead) {
+			data = builder.refreshAfterWrite(Duration.ofMinutes(TTL_MINUTES))
+					.build(loader);
+		} else {
+			data = builder.expireAfterWrite(Duration.ofMinutes(TTL_MINUTES))
+					.build(loader);
+		}
+		Metrics.cache("snapshot", data);
 	}
 	
-	ByteArrayOutputStream retrieve() {
-		try {
-			return data.get(KEY);
-		} catch (ExecutionException e) {
-			e.printStackTrace();
-			byte [] err = String.format("[ERROR: \"Unable to load value %s\"]" ,e.getMessage()).getBytes();
-			ByteArrayOutputStream b = new ByteArrayOutputStream(512);
-			b.write(err,0, err.length);
-			return b;
+	/**
+	 * Refresh again once the backoff for the failures so far has passed
+	 */
+	private void scheduleRetry() {
+		int failures = ++failedRefreshes; // only written on the refresh thread
+		if (!retryScheduled.compareAndSet(false, true)) {
+			return;
 		}
+		long delay = Math.min(TimeUnit.MINUTES.toSeconds(TTL_MINUTES), FIRST_RETRY_SECONDS << Math.min(failures - 1, 10));
+		refreshExecutor.schedule(() -> {
+			retryScheduled.set(false);
+			data.refresh(KEY);
+		}, delay, TimeUnit.SECONDS);
 	}
 	
-	ByteArrayOutputStream retrieveObject() {
-        String objectEnd = "}";
-        byte [] objectEndBytes= objectEnd.getBytes();
+	private void recordRefresh(RefreshOutcome outcome) {
+		lastRefreshOutcome = outcome;
+	}
+	
+	/**
+	 * @return the corridor's prepared responses, or an error payload if it couldn't be loaded
+	 */
+	TrafficSnapshot.Payload retrieve(String corridor) {
 		try {
-			ByteArrayOutputStream jsonArrayStr = data.get(KEY);
-			ByteArrayOutputStream jsonObjectBaos = new ByteArrayOutputStream(512);
-			String objectBegin = "{ \"DATA\": ";
-			byte [] objectBeginBytes = objectBegin.getBytes();
-			jsonObjectBaos.write(objectBeginBytes,0,objectBeginBytes.length);
-			byte [] jsonBytes = jsonArrayStr.toByteArray();
-			jsonObjectBaos.write(jsonBytes,0,jsonBytes.length);
-			jsonObjectBaos.write(objectEndBytes,0,objectEndBytes.length);
-			return jsonObjectBaos;
+			TrafficSnapshot.Payload payload = data.get(KEY).get(corridor);
+			return (payload != null) ? payload : TrafficSnapshot.error("unknown corridor " + corridor);
 		} catch (Exception e) {
 			e.printStackTrace();
-			String message = e.getMessage();
-			byte[] errMsg = message.getBytes();
-			ByteArrayOutputStream errStream = new ByteArrayOutputStream(errMsg.length + 10);
-			String errObjBegin = "{ \"ERROR\":";
-			byte[] errObjBeginBytes = errObjBegin.getBytes();
-			errStream.write(errObjBeginBytes,0,errObjBeginBytes.length);
-			errStream.write(errMsg,0,errMsg.length);
-			errStream.write(objectEndBytes,0,objectEndBytes.length);
-			return errStream;
+			return TrafficSnapshot.error(e.getMessage());
 		}
 	}
 
-	ByteArrayOutputStream force() {
+	/**
+	 * Reload now, rate limited.  In refresh-ahead mode the reload happens in the
+	 * background and the current snapshot is returned meanwhile.
+	 */
+	TrafficSnapshot.Payload force(String corridor) {
 		if (uncachedReadLimiter.tryAcquire()) {
-			data.invalidate(KEY);
-			return retrieve();
+			if (refreshAhead) {
+				data.refresh(KEY);
+			} else {
+				data.invalidate(KEY);
+			}
 		} else {
-			return retrieve();
+			FORCE_LIMITED.inc();
+		}
+		return retrieve(corridor);
+	}
+	
+	/**
+	 * @return seconds since the snapshot being served was loaded, or -1 if there is none yet
+	 */
+	long snapshotAgeSeconds() {
+		TrafficSnapshot snapshot = data.getIfPresent(KEY);
+		if (snapshot == null) {
+			return -1;
 		}
+		return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - snapshot.getLoadedAtMillis());
+	}
+	
+	/**
+	 * @return how long a client may reuse the current snapshot: until it's due to be refreshed
+	 */
+	long maxAgeSeconds() {
+		long age = snapshotAgeSeconds();
+		return (age < 0) ? 0 : Math.max(0, TimeUnit.MINUTES.toSeconds(TTL_MINUTES) - age);
+	}
+	
+	/**
+	 * @return the latest load attempt's outcome
+	 */
+	RefreshOutcome lastRefreshOutcome() {
+		return lastRefreshOutcome;
 	}
 }
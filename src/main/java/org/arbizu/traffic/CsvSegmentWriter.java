@@ -0,0 +1,78 @@
+package org.arbizu.traffic;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * The original {@code time,speed} text segment, with its {@link SparseTimeIndex}
+ * @author alan
+ */
+class CsvSegmentWriter implements SegmentWriter {
+	static final String HEADER = String.format("%s,%s", "time", "speed");
+	private final FileOutputStream file;
+	private final Writer out;
+	private final SparseTimeIndex.Writer index;
+	private long size;
+
+	private CsvSegmentWriter(FileOutputStream file, Writer out, SparseTimeIndex.Writer index, long size) {
+		this.file = file;
+		this.out = out;
+		this.index = index;
+		this.size = size;
+	}
+
+	static CsvSegmentWriter open(File f) throws IOException {
+		boolean created = f.createNewFile();
+		FileOutputStream file = new FileOutputStream(f, true);
+		Writer w = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8));
+		if (created) {
+			w.write(HEADER);
+			w.write(System.lineSeparator());
+			w.flush(); // so the index sees the header
+		}
+		long size = f.length();
+		try {
+			return new CsvSegmentWriter(file, w, SparseTimeIndex.openWriter(f.toPath(), size), size);
+		} catch (IOException e) {
+			w.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void append(long epochSeconds, int speed, String incident) throws IOException {
+		String line = DataLogger.TIME_FORMAT.format(Instant.ofEpochSecond(epochSeconds))
+				+ ',' + speed + System.lineSeparator(); // all ASCII, so chars are bytes
+		out.write(line);
+		index.appended(epochSeconds, size, line.length());
+		size += line.length();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+		index.flush();
+	}
+
+	@Override
+	public void sync() throws IOException {
+		out.flush();
+		file.getFD().sync();
+		index.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			out.close();
+		} finally {
+			index.close();
+		}
+	}
+}
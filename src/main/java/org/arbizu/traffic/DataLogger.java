@@ -1,94 +1,241 @@
 package org.arbizu.traffic;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.LinkedList;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 
 
 /**
- * Persists collected time-series traffic data 
+ * Persists collected time-series traffic data, one segment per sensor per month,
+ * in the configured {@link SegmentFormat}.
+ *
+ * Writers stay open between samples, at most {@value #MAX_OPEN_PROPERTY} of them,
+ * closing the least recently used when there are more.  A new month closes the
+ * previous month's writers.  Appends are flushed in batches according to
+ * {@value #FLUSH_PROPERTY}:
+ * <ul>
+ *     <li>{@code tick} (default): after every sample set</li>
+ *     <li>{@code interval}: every {@value #FLUSH_MILLIS_PROPERTY} ms</li>
+ *     <li>{@code records}: every {@value #FLUSH_RECORDS_PROPERTY} appended records</li>
+ * </ul>
+ * and additionally forced to the device when {@value #FSYNC_PROPERTY} is true.
+ * Each segment's {@link Rollup}s are updated as it's appended to, unless
+ * {@value Rollup#ENABLED_PROPERTY} is false.  Registered {@link Listener}s hear about
+ * every append and about each segment that was written out by a flush.
  * @author alan
  */
-class DataLogger {
+class DataLogger implements Closeable {
 	static final String LOG_FILE_EXT = ".csv";
-	static final String LOG_PATH = "logs";
-	private final Map<Integer, FileWriter> datafileWriters;
-	private final int dataFileCount;
+	static final String DIR_PROPERTY = "traffic.store.dir";
+	static final String LOG_PATH = System.getProperty(DIR_PROPERTY, "logs");
+	static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd:HH:mm:ss").withZone(ZoneId.systemDefault());
+	static final String MAX_OPEN_PROPERTY = "traffic.store.maxOpenWriters";
+	static final String FLUSH_PROPERTY = "traffic.store.flush";
+	static final String FLUSH_MILLIS_PROPERTY = "traffic.store.flushMillis";
+	static final String FLUSH_RECORDS_PROPERTY = "traffic.store.flushRecords";
+	static final String FSYNC_PROPERTY = "traffic.store.fsync";
+	private static final DateTimeFormatter FILE_NAME_FORMAT = DateTimeFormatter.ofPattern("MM-yyyy").withZone(ZoneId.systemDefault());
+
+	private enum FlushPolicy { TICK, INTERVAL, RECORDS }
+
+	/**
+	 * Told about history as it's logged; called on the logging thread, so keep it quick
+	 */
+	interface Listener {
+		/** a sample was appended to segment {@code key}, it may not be on disk yet */
+		void appended(String key, long epochSeconds, int speed);
+
+		/** segment {@code key}'s appends so far are now readable from its file */
+		void flushed(String key);
+	}
+
+	private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+	// per poll rather than per sample; one sample's append is well below the finest bucket
+	private static final Metrics.Histogram APPEND_SECONDS = Metrics.histogram("traffic_history_append_seconds",
+			"Appending one poll's samples to history, including any flush it triggers");
+	private static final Metrics.Counter APPENDED = Metrics.counter("traffic_history_samples_total",
+			"Samples appended to history");
+
+	private final SegmentFormat format;
+	private final FlushPolicy flushPolicy;
+	private final int flushRecords;
+	private final boolean fsync;
+	private final boolean rollups;
+	private final Map<String, SegmentWriter> datafileWriters;
+	private final Set<String> unflushedKeys = new HashSet<>();
+	private String currentPrefix;
+	private int unflushedRecords;
+	private ScheduledExecutorService flusher;
 	
-	private final SimpleDateFormat fileNameFormat = new SimpleDateFormat("MM-yyyy");
+	private DataLogger(SegmentFormat format, int maxOpenWriters, FlushPolicy flushPolicy, int flushRecords, boolean fsync, boolean rollups) {
+		this.format = format;
+		this.flushPolicy = flushPolicy;
+		this.flushRecords = flushRecords;
+		this.fsync = fsync;
+		this.rollups = rollups;
+		this.datafileWriters = new LinkedHashMap<String, SegmentWriter>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SegmentWriter> eldest) {
+				if (size() > maxOpenWriters) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
 	
-	private DataLogger(int fileCount) {
-		this.dataFileCount = fileCount;
-		this.datafileWriters = Maps.newHashMapWithExpectedSize(fileCount);
+	static void addListener(Listener listener) {
+		LISTENERS.add(listener);
 	}
 	
-	static DataLogger getLogger(int fileCount) {
-		return new DataLogger(fileCount);
+	static DataLogger create() {
+		FlushPolicy policy = FlushPolicy.valueOf(System.getProperty(FLUSH_PROPERTY, "tick").toUpperCase());
+		DataLogger logger = new DataLogger(SegmentFormat.configured(),
+				Integer.getInteger(MAX_OPEN_PROPERTY, 256),
+				policy,
+				Integer.getInteger(FLUSH_RECORDS_PROPERTY, 1000),
+				Boolean.getBoolean(FSYNC_PROPERTY),
+				Rollup.enabled());
+		if (policy == FlushPolicy.INTERVAL) {
+			long millis = Long.getLong(FLUSH_MILLIS_PROPERTY, 1000);
+			logger.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "data-logger-flush");
+				t.setDaemon(true);
+				return t;
+			});
+			logger.flusher.scheduleWithFixedDelay(logger::flushQuietly, millis, millis, TimeUnit.MILLISECONDS);
+		}
+		return logger;
 	}
 	
-	boolean initialize() {
-		boolean allInitialized = true;
-		String filePrefix = getFilePrefix();
-		File file = null;
-		for (int i = 0; i < dataFileCount; ++i) {
+	/**
+	 * @param dataSet one datum per file id; null entries (sensors missing from this poll) are skipped
+	 */
+	synchronized void logData(long epochSeconds, TrafficDatum[] dataSet) throws IOException {
+		long start = System.nanoTime();
+		int appended = 0;
+		String prefix = FILE_NAME_FORMAT.format(Instant.ofEpochSecond(epochSeconds));
+		if (!prefix.equals(currentPrefix)) {
+			closeAll(); // month rollover
+			currentPrefix = prefix;
+		}
+		for (int id = 0; id < dataSet.length; ++id) {
+			TrafficDatum datum = dataSet[id];
+			if (datum == null) continue;
+			String key = prefix + "-" + id;
+			SegmentWriter writer = writerFor(key);
+			if (writer != null) {
+				writer.append(epochSeconds, datum.getSpeed(), datum.getIncident());
+				++unflushedRecords;
+				++appended;
+				unflushedKeys.add(key);
+				for (Listener listener : LISTENERS) {
+					listener.appended(key, epochSeconds, datum.getSpeed());
+				}
+			}
+		}
+		if (flushPolicy == FlushPolicy.TICK || (flushPolicy == FlushPolicy.RECORDS && unflushedRecords >= flushRecords)) {
+			flush();
+		}
+		APPENDED.add(appended);
+		APPEND_SECONDS.observeSince(start);
+	}
+	
+	private SegmentWriter writerFor(String key) {
+		SegmentWriter writer = datafileWriters.get(key);
+		if (writer == null) {
+			File file = format.pathFor(key).toFile();
 			try {
-				file = getFile(filePrefix, i);
-				FileWriter fw = new FileWriter(file, true);
-				datafileWriters.put(i, fw);
+				Files.createParentDirs(file);
+				writer = format.open(file);
+				if (rollups) {
+					writer = rollingUp(key, writer);
+				}
+				datafileWriters.put(key, writer);
 			} catch (IOException e) {
-				allInitialized = false;
-				String filename = (file != null) ? file.getAbsolutePath() : "unknown path";
-				System.err.println("file creation error: " + filename + " " + e.getMessage());
+				System.err.println("file creation error: " + file.getAbsolutePath() + " " + e.getMessage());
 			}
 		}
-		return allInitialized;
+		return writer;
 	}
 	
-	void logData(LinkedList<String> dataSet) throws IOException {
-		int id = 0;
-		for (String s : dataSet) {
-			FileWriter fw = datafileWriters.get(id);
-			fw.write(s);
-			fw.write(System.lineSeparator());
-			++id;
+	private static SegmentWriter rollingUp(String key, SegmentWriter segment) throws IOException {
+		try {
+			return Rollup.rollingUp(key, segment);
+		} catch (IOException e) {
+			closeQuietly(segment);
+			throw e;
 		}
-		closeAll(datafileWriters);
 	}
 	
-	private void closeAll(Map<Integer, FileWriter> writers) {
-		for (FileWriter fw : writers.values()) {
-			try {
-				fw.close();
-			} catch (IOException ioe) {
-				// keep trying to close the other writers
+	synchronized void flush() throws IOException {
+		for (SegmentWriter writer : datafileWriters.values()) {
+			if (fsync) {
+				writer.sync();
+			} else {
+				writer.flush();
 			}
 		}
+		unflushedRecords = 0;
+		notifyFlushed();
 	}
 	
-	private String getFilePrefix() {
-		Date now = new Date();
-		return fileNameFormat.format(now);
+	private void notifyFlushed() {
+		for (String key : unflushedKeys) {
+			for (Listener listener : LISTENERS) {
+				listener.flushed(key);
+			}
+		}
+		unflushedKeys.clear();
+	}
+	
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (IOException e) {
+			System.err.println("flush error: " + e.getMessage());
+		}
+	}
+	
+	private void closeAll() {
+		Iterator<SegmentWriter> writers = datafileWriters.values().iterator();
+		while (writers.hasNext()) {
+			closeQuietly(writers.next()); // keep trying to close the other writers
+			writers.remove();
+		}
+		unflushedRecords = 0;
+		notifyFlushed();
+	}
+	
+	private static void closeQuietly(SegmentWriter writer) {
+		try {
+			writer.close();
+		} catch (IOException ioe) {
+			System.err.println("close error: " + ioe.getMessage());
+		}
 	}
 	
-	private File getFile(String prefix, int uniqueId) throws IOException {
-        final Path logFilePath = FileSystems.getDefault().getPath(LOG_PATH, prefix + "-" + uniqueId + LOG_FILE_EXT);
-		File f = logFilePath.toFile();
-		Files.createParentDirs(f);
-		if (f.createNewFile()) {
-			FileWriter headerWriter = new FileWriter(f);
-			headerWriter.write(String.format("%s,%s", "time", "speed"));
-			headerWriter.write(System.lineSeparator());
-			headerWriter.close();
+	@Override
+	public synchronized void close() {
+		if (flusher != null) {
+			flusher.shutdown();
 		}
-		return f;
+		closeAll();
 	}
 }
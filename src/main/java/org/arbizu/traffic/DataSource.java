@@ -1,12 +1,11 @@
 package org.arbizu.traffic;
 
-import com.google.common.base.Splitter;
-import com.google.common.collect.Lists;
 import com.google.gson.*;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.logging.Level;
 
@@ -15,102 +14,123 @@ import java.util.logging.Level;
  * @since 3/19/2017
  */
 class DataSource {
+    static final String CAPTURE_PROPERTY = "traffic.capture.dir";
+    static final String CAPTURE_PREFIX = "NoCalData-";
+    static final String DATA_URL_PROPERTY = "traffic.upstream.dataUrl";
+    static final String METADATA_URL_PROPERTY = "traffic.upstream.metadataUrl";
     private static final String DATA_URL = "http://www.sigalert.com/Data/NoCal/1~j/NoCalData.json?cb=25615489";
     private static final String METADATA_URL = "http://cdn-static.sigalert.com/154/Zip/RegionInfo/NoCalStatic.js";
-    private static final ArrayList<Integer> roadSections = Lists.newArrayList(2645, 2646, 2647, 2648, 2649, 2650, 2651, 2652, 2653, 2654);
-    private final static String SPEEDS = "speeds";
-    private final static String INCIDENTS = "incidents";
-    private final static String SENSOR_NAMES = "SensorNames";
-    private final Splitter semicolonSplitter = Splitter.on(";");
-    private final Splitter equalsSplitter = Splitter.on("=");
-    private final JsonParser json = new JsonParser();
+    // parsing streams the body as it arrives, so a slow upstream shows up here as well as in the fetch
+    private static final Metrics.Histogram PARSE_SECONDS = Metrics.histogram("traffic_feed_parse_seconds",
+            "Parsing a feed, including reading its body");
+    private static final Metrics.Histogram TO_JSON_SECONDS = Metrics.histogram("traffic_corridor_json_seconds",
+            "Serializing one corridor's share of a feed");
+    private final SensorRegistry registry;
+    private final SensorNameCache nameCache;
+    private final SpeedFeedParser feedParser;
     private final Gson gson;
     private final AutoflushingLogger logger;
     
-    DataSource(AutoflushingLogger logger) {
+    DataSource(AutoflushingLogger logger, SensorRegistry registry, SensorNameCache nameCache) {
         this.logger = logger;
+        this.registry = registry;
+        this.nameCache = nameCache;
+        this.feedParser = SpeedFeedParser.create(registry);
         GsonBuilder builder = new GsonBuilder();
         builder.registerTypeAdapter(TrafficDatum.class, new TrafficDatumTypeAdapter());
         this.gson = builder.create();
     }
     
+    /**
+     * Upstream sources, each at its default URL unless its property points elsewhere
+     */
     enum SourceType {
-        DATA(DATA_URL),
-        METADATA(METADATA_URL, "/static-js-resources");
+        DATA(DATA_URL_PROPERTY, DATA_URL),
+        METADATA(METADATA_URL_PROPERTY, METADATA_URL, "/static-js-resources");
         
+        private final String urlProperty;
         private final String url;
         private final String fallbackFile;
     
-        SourceType(String url) { this.url = url; this.fallbackFile = null;}
-        SourceType(String url, String fallBackFile) { this.url = url; this.fallbackFile = fallBackFile; }
-        public String getUrl() {  return this.url;  }
+        SourceType(String urlProperty, String url) { this(urlProperty, url, null); }
+        SourceType(String urlProperty, String url, String fallBackFile) { this.urlProperty = urlProperty; this.url = url; this.fallbackFile = fallBackFile; }
+        public String getUrl() {  return System.getProperty(urlProperty, this.url);  }
         public String getFallback() { return this.fallbackFile; }
     }
     
-    private TrafficDataReader getReaderFor(SourceType type) {
-        return WebDataReader.create(type, logger);
+    /**
+     * @param epochSeconds when the read happens, names the capture file if {@value #CAPTURE_PROPERTY} is set
+     * and stamps the {@link FeedJournal} entry if {@value FeedJournal#DIR_PROPERTY} is
+     */
+    private TrafficDataReader getReaderFor(SourceType type, long epochSeconds) {
+        WebDataReader reader = WebDataReader.create(type, logger);
+        String captureDir = System.getProperty(CAPTURE_PROPERTY);
+        if (type == SourceType.DATA && captureDir != null) {
+            reader.persistTo(new File(captureDir, CAPTURE_PREFIX + epochSeconds + ".json"));
+        }
+        if (type == SourceType.DATA && FeedJournal.isEnabled()) {
+            reader.journal(epochSeconds);
+        }
+        return reader;
     }
     
-    ByteArrayOutputStream collect() {
-        TrafficDataReader dataReader = getReaderFor(SourceType.DATA).init().read();
-        TrafficDataReader metadataReader = getReaderFor(SourceType.METADATA).init().read();
+    /**
+     * Read the feed once and build every configured corridor from that single pass.
+     * @return JSON per corridor name, in registry order
+     * @throws Exception if the feed couldn't be fetched or parsed, so callers can keep older results
+     */
+    LinkedHashMap<String,byte[]> collect() throws Exception {
+        long now = System.currentTimeMillis() / 1000;
+        return collect(getReaderFor(SourceType.DATA, now), now);
+    }
     
-        LinkedHashMap<Integer,TrafficDatum> data = new LinkedHashMap<>();
-        try {
-            dataReader.initReader();
-            while (dataReader.hasNext()) {
-                String line = dataReader.nextLine();
-                JsonElement parsedElements = json.parse(line);
-                JsonObject jsonObject = parsedElements.getAsJsonObject();
-            
-                roadSections.forEach( locator -> {
-                    int speed = jsonObject.get(SPEEDS).getAsJsonArray().get(locator).getAsJsonArray().get(0).getAsInt();
-                    TrafficDatum d = new TrafficDatum();
-                    d.setSpeed(speed);
-                    data.put(locator, d);
-                });
-            
-                for(JsonElement e : jsonObject.get(INCIDENTS).getAsJsonArray()) {
-                    JsonArray jsonArray = e.getAsJsonArray();
-                    int loc = jsonArray.get(0).getAsInt();
-                    if (roadSections.contains(loc)) {
-                        String incident = jsonArray.get(2).getAsString() + jsonArray.get(3).getAsString() + jsonArray.get(4).getAsString();
-                        data.get(loc).setIncident(incident);
-                    }
-                }
+    /**
+     * Collect from any source, such as a saved feed being replayed
+     * @param epochSeconds the time the samples are logged under
+     */
+    LinkedHashMap<String,byte[]> collect(TrafficDataReader reader, long epochSeconds) throws Exception {
+        TrafficDatum[] data = reader.stream(content -> {
+            long start = System.nanoTime();
+            try {
+                return feedParser.parse(content);
+            } finally {
+                PARSE_SECONDS.observeSince(start);
             }
-            dataReader.close();
-            
-            // log the traffic data to csv format, asynchronously
-            TrafficLogging.process(data);
-            
-            metadataReader.initReader();
-            while (metadataReader.hasNext()) {
-                String line = metadataReader.nextLine();
-                Iterable<String> lineParts = semicolonSplitter.split(line);
-                for (String segment : lineParts) {
-                    List<String> segmentParts = equalsSplitter.splitToList(segment);
-                    if (segmentParts.size() < 2) continue;
-                    if (segmentParts.get(0).endsWith(SENSOR_NAMES)) {
-                        JsonElement element = json.parse(segmentParts.get(1));
-                        roadSections.forEach( locator -> data.get(locator).setLocationName(element.getAsJsonArray().get(locator).getAsString()));
-                    }
-                }
+        });
+        
+        // log the traffic data to csv format, asynchronously
+        TrafficLogging.process(epochSeconds, data);
+        return corridors(data);
+    }
+    
+    /**
+     * Name the parsed data and serialize each corridor's share of it
+     */
+    LinkedHashMap<String,byte[]> corridors(TrafficDatum[] data) {
+        String[] names = nameCache.names();
+        for (int slot = 0; slot < data.length; ++slot) {
+            int sensor = registry.sensorAt(slot);
+            if (data[slot] != null && sensor < names.length) {
+                data[slot].setLocationName(names[sensor]);
             }
-            metadataReader.close();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-        return toJson(data);
+        LinkedHashMap<String,byte[]> corridors = new LinkedHashMap<>();
+        for (String corridor : registry.corridorNames()) {
+            long start = System.nanoTime();
+            corridors.put(corridor, toJson(data, registry.slotsOf(corridor)));
+            TO_JSON_SECONDS.observeSince(start);
+        }
+        return corridors;
     }
     
-    private ByteArrayOutputStream toJson(LinkedHashMap<Integer,TrafficDatum> rawData) {
+    byte[] toJson(TrafficDatum[] rawData, int[] slots) {
         ByteArrayOutputStream b = new ByteArrayOutputStream(1024);
         try (
-            Writer w = new BufferedWriter(new OutputStreamWriter(b))
+            Writer w = new BufferedWriter(new OutputStreamWriter(b, StandardCharsets.UTF_8))
         ) {
-            JsonArray jsonArr = rawData.values()
-                    .stream()
+            JsonArray jsonArr = Arrays.stream(slots)
+                    .mapToObj(slot -> rawData[slot])
+                    .filter(Objects::nonNull)
                     .map(datum -> {
                         JsonArray a = new JsonArray();
                         a.add(datum.getLocationName());
@@ -122,7 +142,7 @@ class DataSource {
         } catch (Exception e) {
             logger.log(Level.SEVERE, "writing json", new Object[] { e });
         }
-        return b;
+        return b.toByteArray();
     }
     
     static class TrafficDatumTypeAdapter extends TypeAdapter<TrafficDatum> {
@@ -0,0 +1,521 @@
+package org.arbizu.traffic;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * Append-only journal of raw upstream feeds, one segment per month, kept when
+ * {@value #DIR_PROPERTY} names a directory.
+ *
+ * A segment is a pair of files.  {@code NoCalData-MM-yyyy}{@value #DATA_EXT} holds
+ * {@link Deflater} compressed bodies back to back after a 16 byte header;
+ * {@value #INDEX_EXT} holds a 16 byte header and then one fixed-width entry per payload:
+ * <pre>
+ *   long  epoch seconds
+ *   long  body offset in the data file
+ *   int   compressed length
+ *   int   raw length
+ *   32    SHA-256 of the raw body
+ * </pre>
+ * A payload identical to one already in the segment (hash and length) gets an entry
+ * pointing at the earlier body instead of a copy, which is most of the night.  Entries
+ * are in append order, so in time order for collected feeds, and reads map the index.
+ * A body is written before its entry, so a torn entry or an unreferenced body left by
+ * a crash is trimmed when the segment is reopened.
+ *
+ * {@link #append} only queues the payload: hashing, compression and writing happen on a
+ * background thread that takes whatever has queued as one batch, so journaling adds
+ * nothing to {@link DataSource#collect}.  The body is handed over in the buffer it was
+ * collected in, and that buffer is given back through {@link #buffer} once it's written.
+ * A full queue drops the payload.  The queue is written out at shutdown.
+ *
+ * Run {@code main} with an index to list it, or with an index and a directory to
+ * extract every payload as {@code NoCalData-<epoch seconds>.json} for {@link Replay}.
+ * @author alan
+ */
+class FeedJournal implements Closeable {
+	static final String DIR_PROPERTY = "traffic.journal.dir";
+	static final String QUEUE_PROPERTY = "traffic.journal.queue";
+	static final String DATA_EXT = ".fjd";
+	static final String INDEX_EXT = ".fjx";
+	static final int HEADER_SIZE = 16;
+	static final int ENTRY_SIZE = 56;
+	private static final int DATA_MAGIC = 0x54464A44; // "TFJD"
+	private static final int INDEX_MAGIC = 0x54464A58; // "TFJX"
+	private static final short VERSION = 1;
+	private static final String PREFIX = DataSource.CAPTURE_PREFIX;
+	private static final int BATCH_SIZE = 16;
+	private static final long DRAIN_TIMEOUT_SECONDS = 10;
+	private static final DateTimeFormatter FILE_NAME_FORMAT = DateTimeFormatter.ofPattern("MM-yyyy").withZone(ZoneId.systemDefault());
+	private static final Metrics.Family<Metrics.Counter> PAYLOADS = Metrics.counters("traffic_journal_payloads_total",
+			"Feeds journaled, by whether the body was stored or referred to an identical one", "stored");
+	private static final Metrics.Counter STORED = PAYLOADS.labels("body");
+	private static final Metrics.Counter REFERENCED = PAYLOADS.labels("reference");
+	private static final Metrics.Family<Metrics.Counter> BYTES = Metrics.counters("traffic_journal_bytes_total",
+			"Feed bytes journaled, raw and as written", "form");
+	private static final Metrics.Counter RAW_BYTES = BYTES.labels("raw");
+	private static final Metrics.Counter WRITTEN_BYTES = BYTES.labels("written");
+	private static final Metrics.Counter DROPPED = Metrics.counter("traffic_journal_dropped_total",
+			"Feeds not journaled because the queue was full or the write failed");
+	private static final FeedJournal INSTANCE = start();
+
+	private final File dir;
+	private final BlockingQueue<Payload> queue;
+	private final Thread writer;
+	private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+	private final byte[] chunk = new byte[64 * 1024];
+	private final AtomicReference<byte[]> spare = new AtomicReference<>();
+	private Segment segment;
+	private volatile boolean accepting = true;
+
+	private static class Payload {
+		final long epochSeconds;
+		final byte[] body;
+		final int length;
+
+		Payload(long epochSeconds, byte[] body, int length) {
+			this.epochSeconds = epochSeconds;
+			this.body = body;
+			this.length = length;
+		}
+	}
+
+	private FeedJournal(File dir, int capacity) {
+		this.dir = dir;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.writer = new Thread(this::drain, "journal-writer");
+		this.writer.setDaemon(true);
+	}
+
+	private static FeedJournal start() {
+		String dir = System.getProperty(DIR_PROPERTY);
+		if (dir == null) {
+			return null;
+		}
+		FeedJournal journal = new FeedJournal(new File(dir), Integer.getInteger(QUEUE_PROPERTY, 64));
+		journal.writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "journal-shutdown"));
+		return journal;
+	}
+
+	static boolean isEnabled() {
+		return INSTANCE != null;
+	}
+
+	/**
+	 * @return an array to collect a body in, at least {@code minBytes} long: the last one
+	 * the writer finished with if it's big enough, so polling doesn't allocate one per feed
+	 */
+	static byte[] buffer(int minBytes) {
+		byte[] spare = (INSTANCE != null) ? INSTANCE.spare.getAndSet(null) : null;
+		return (spare != null && spare.length >= minBytes) ? spare : new byte[minBytes];
+	}
+
+	/**
+	 * Queue a feed body for the journal, if there is one
+	 * @param body the decoded body as received, in its first {@code length} bytes; not copied,
+	 * so don't touch it afterwards.  The writer may hand it out again from {@link #buffer}.
+	 */
+	static void append(long epochSeconds, byte[] body, int length) {
+		if (INSTANCE == null) {
+			return;
+		}
+		if (!INSTANCE.accepting || !INSTANCE.queue.offer(new Payload(epochSeconds, body, length))) {
+			DROPPED.inc();
+		}
+	}
+
+	private void drain() {
+		List<Payload> batch = new ArrayList<>(BATCH_SIZE);
+		while (accepting || !queue.isEmpty()) {
+			Payload first;
+			try {
+				first = queue.poll(500, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (first == null) continue;
+			batch.add(first);
+			queue.drainTo(batch, BATCH_SIZE - 1);
+			try {
+				write(batch);
+			} catch (IOException | RuntimeException e) {
+				DROPPED.add(batch.size());
+				System.err.println("journal write failed, " + batch.size() + " feeds lost: " + e);
+				closeSegment(); // reopened, and trimmed, by the next batch
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Append a batch: bodies first, forced, then their index entries
+	 */
+	private void write(List<Payload> batch) throws IOException {
+		for (Payload payload : batch) {
+			String month = FILE_NAME_FORMAT.format(Instant.ofEpochSecond(payload.epochSeconds));
+			if (segment == null || !segment.month.equals(month)) {
+				if (segment != null) segment.commit();
+				closeSegment();
+				Files.createDirectories(dir.toPath());
+				segment = new Segment(dir.toPath().resolve(PREFIX + month), month);
+			}
+			HashCode hash = Hashing.sha256().hashBytes(payload.body, 0, payload.length);
+			long[] stored = segment.bodies.get(hash);
+			if (stored != null && stored[2] == payload.length) {
+				segment.entry(payload.epochSeconds, stored[0], (int) stored[1], payload.length, hash);
+				REFERENCED.inc();
+			} else {
+				byte[] compressed = deflate(payload.body, payload.length);
+				long offset = segment.body(compressed);
+				segment.entry(payload.epochSeconds, offset, compressed.length, payload.length, hash);
+				segment.bodies.put(hash, new long[] { offset, compressed.length, payload.length });
+				STORED.inc();
+				WRITTEN_BYTES.add(compressed.length);
+			}
+			RAW_BYTES.add(payload.length);
+			WRITTEN_BYTES.add(ENTRY_SIZE);
+			spare.set(payload.body);
+		}
+		segment.commit();
+	}
+
+	private byte[] deflate(byte[] body, int length) {
+		deflater.reset();
+		deflater.setInput(body, 0, length);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length / 8);
+		while (!deflater.finished()) {
+			out.write(chunk, 0, deflater.deflate(chunk));
+		}
+		return out.toByteArray();
+	}
+
+	private void closeSegment() {
+		if (segment != null) {
+			try {
+				segment.close();
+			} catch (IOException e) {
+				System.err.println("journal close failed: " + e);
+			}
+			segment = null;
+		}
+	}
+
+	/**
+	 * Stop taking feeds, let the writer empty the queue, then close the segment
+	 */
+	@Override
+	public void close() {
+		accepting = false;
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(DRAIN_TIMEOUT_SECONDS));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!queue.isEmpty()) {
+			System.err.println(queue.size() + " feeds not journaled at shutdown");
+		}
+		if (!writer.isAlive()) {
+			closeSegment();
+			deflater.end();
+		}
+	}
+
+	/**
+	 * One month's data and index files, open for appending
+	 */
+	private static class Segment implements Closeable {
+		final String month;
+		/** body offset, compressed length and raw length by hash, for every body in the segment */
+		final Map<HashCode, long[]> bodies = new HashMap<>();
+		private final FileChannel data;
+		private final FileChannel index;
+		private ByteBuffer pending = ByteBuffer.allocate(ENTRY_SIZE * BATCH_SIZE);
+
+		Segment(Path base, String month) throws IOException {
+			this.month = month;
+			this.data = open(dataPath(base), DATA_MAGIC);
+			this.index = open(indexPath(base), INDEX_MAGIC);
+			long entries = (index.size() - HEADER_SIZE) / ENTRY_SIZE;
+			long end = HEADER_SIZE;
+			ByteBuffer e = ByteBuffer.allocate(ENTRY_SIZE);
+			for (long i = 0; i < entries; ++i) {
+				e.clear();
+				readFully(index, e, HEADER_SIZE + i * ENTRY_SIZE);
+				e.flip();
+				e.getLong();
+				long offset = e.getLong();
+				int compressed = e.getInt();
+				int raw = e.getInt();
+				if (offset + compressed > data.size()) {
+					entries = i; // its body never made it
+					break;
+				}
+				byte[] hash = new byte[32];
+				e.get(hash);
+				bodies.putIfAbsent(HashCode.fromBytes(hash), new long[] { offset, compressed, raw });
+				end = Math.max(end, offset + compressed);
+			}
+			index.truncate(HEADER_SIZE + entries * ENTRY_SIZE);
+			data.truncate(end);
+			index.position(index.size());
+			data.position(data.size());
+		}
+
+		private static FileChannel open(Path path, int magic) throws IOException {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (channel.size() < HEADER_SIZE) {
+				channel.truncate(0);
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(magic).putShort(VERSION);
+				header.rewind(); // the whole header, reserved bytes included
+				channel.write(header, 0);
+			} else {
+				checkHeader(channel, path, magic);
+			}
+			return channel;
+		}
+
+		long body(byte[] compressed) throws IOException {
+			long offset = data.position();
+			ByteBuffer b = ByteBuffer.wrap(compressed);
+			while (b.hasRemaining()) {
+				data.write(b);
+			}
+			return offset;
+		}
+
+		/**
+		 * Queue an index entry; it's written by {@link #commit()}, once the bodies are on disk
+		 */
+		void entry(long epochSeconds, long offset, int compressed, int raw, HashCode hash) {
+			if (pending.remaining() < ENTRY_SIZE) {
+				ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+				pending.flip();
+				pending = bigger.put(pending);
+			}
+			pending.putLong(epochSeconds).putLong(offset).putInt(compressed).putInt(raw).put(hash.asBytes());
+		}
+
+		void commit() throws IOException {
+			data.force(false);
+			pending.flip();
+			while (pending.hasRemaining()) {
+				index.write(pending);
+			}
+			pending.clear();
+			index.force(false);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				data.close();
+			} finally {
+				index.close();
+			}
+		}
+	}
+
+	/**
+	 * Random access over a segment, through its mapped index
+	 */
+	static class Reader implements Closeable {
+		private final FileChannel data;
+		private final MappedByteBuffer entries;
+		private final int count;
+
+		private Reader(Path base) throws IOException {
+			try (FileChannel index = FileChannel.open(indexPath(base), StandardOpenOption.READ)) {
+				checkHeader(index, indexPath(base), INDEX_MAGIC);
+				this.count = (int) ((index.size() - HEADER_SIZE) / ENTRY_SIZE);
+				this.entries = index.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) count * ENTRY_SIZE);
+			}
+			this.data = FileChannel.open(dataPath(base), StandardOpenOption.READ);
+			checkHeader(data, dataPath(base), DATA_MAGIC);
+		}
+
+		int count() {
+			return count;
+		}
+
+		long epochSeconds(int entry) {
+			return entries.getLong(entry * ENTRY_SIZE);
+		}
+
+		int rawLength(int entry) {
+			return entries.getInt(entry * ENTRY_SIZE + 20);
+		}
+
+		int compressedLength(int entry) {
+			return entries.getInt(entry * ENTRY_SIZE + 16);
+		}
+
+		HashCode hash(int entry) {
+			byte[] hash = new byte[32];
+			for (int i = 0; i < hash.length; ++i) {
+				hash[i] = entries.get(entry * ENTRY_SIZE + 24 + i);
+			}
+			return HashCode.fromBytes(hash);
+		}
+
+		/**
+		 * @return true if the entry's body is stored here rather than referring to an earlier one
+		 */
+		boolean storesBody(int entry) {
+			long offset = entries.getLong(entry * ENTRY_SIZE + 8);
+			for (int i = 0; i < entry; ++i) {
+				if (entries.getLong(i * ENTRY_SIZE + 8) == offset) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return the first entry at or after the given time, or {@link #count()} if there is none
+		 */
+		int find(long epochSeconds) {
+			int lo = 0;
+			int hi = count;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (epochSeconds(mid) < epochSeconds) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo;
+		}
+
+		/**
+		 * @return the entry's body as it was received
+		 */
+		byte[] payload(int entry) throws IOException {
+			long offset = entries.getLong(entry * ENTRY_SIZE + 8);
+			ByteBuffer compressed = ByteBuffer.allocate(compressedLength(entry));
+			readFully(data, compressed, offset);
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(compressed.array());
+				byte[] body = new byte[rawLength(entry)];
+				int n = 0;
+				while (n < body.length && !inflater.finished()) {
+					int read = inflater.inflate(body, n, body.length - n);
+					if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					n += read;
+				}
+				if (n != body.length) {
+					throw new IOException("journal entry " + entry + " is truncated");
+				}
+				return body;
+			} catch (DataFormatException e) {
+				throw new IOException("journal entry " + entry + " is corrupt", e);
+			} finally {
+				inflater.end();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			data.close();
+		}
+	}
+
+	/**
+	 * @param path either file of a segment, or their common base name
+	 */
+	static Reader openReader(Path path) throws IOException {
+		String name = path.getFileName().toString();
+		if (name.endsWith(DATA_EXT) || name.endsWith(INDEX_EXT)) {
+			path = path.resolveSibling(name.substring(0, name.length() - INDEX_EXT.length()));
+		}
+		return new Reader(path);
+	}
+
+	private static Path dataPath(Path base) {
+		return base.resolveSibling(base.getFileName() + DATA_EXT);
+	}
+
+	private static Path indexPath(Path base) {
+		return base.resolveSibling(base.getFileName() + INDEX_EXT);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+		while (b.hasRemaining()) {
+			if (channel.read(b, position + b.position()) < 0) {
+				throw new IOException("unexpected end of journal");
+			}
+		}
+	}
+
+	private static void checkHeader(FileChannel channel, Path path, int magic) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, 0);
+		header.flip();
+		if (header.getInt() != magic || header.getShort() != VERSION) {
+			throw new IOException("not a version " + VERSION + " journal file: " + path);
+		}
+	}
+
+	public static void main(String... args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("usage: FeedJournal <segment" + INDEX_EXT + "> [directory to extract feeds to]");
+			System.exit(1);
+		}
+		try (Reader reader = openReader(Paths.get(args[0]))) {
+			if (args.length == 1) {
+				long raw = 0;
+				long stored = 0;
+				for (int i = 0; i < reader.count(); ++i) {
+					boolean body = reader.storesBody(i);
+					System.out.printf("%s %d %10d %10d %s %s%n", DataLogger.TIME_FORMAT.format(Instant.ofEpochSecond(reader.epochSeconds(i))),
+							reader.epochSeconds(i), reader.rawLength(i), reader.compressedLength(i), reader.hash(i), body ? "stored" : "ref");
+					raw += reader.rawLength(i);
+					stored += (body ? reader.compressedLength(i) : 0) + ENTRY_SIZE;
+				}
+				System.out.printf("%d feeds, %d bytes raw, %d bytes journaled (%.1f%%)%n",
+						reader.count(), raw, stored, 100.0 * stored / Math.max(1, raw));
+				return;
+			}
+			File out = new File(args[1]);
+			Files.createDirectories(out.toPath());
+			for (int i = 0; i < reader.count(); ++i) {
+				try (OutputStream file = new BufferedOutputStream(new java.io.FileOutputStream(
+						new File(out, PREFIX + reader.epochSeconds(i) + ".json")))) {
+					file.write(reader.payload(i));
+				}
+			}
+			System.out.println(reader.count() + " feeds extracted to " + out);
+		}
+	}
+}
@@ -3,6 +3,9 @@ package org.arbizu.traffic;
 import com.google.common.base.Preconditions;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.logging.Level;
 
 /**
@@ -91,6 +94,13 @@ class FileDataReader implements TrafficDataReader {
         return currentLine != null;
     }
     
+    @Override
+    public <T> T stream(ContentHandler<T> handler) throws Exception {
+        try (Reader content = Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8)) {
+            return handler.handle(content);
+        }
+    }
+    
     @Override
     public void close() throws Exception {
         if (out != null) out.close();
@@ -0,0 +1,404 @@
+package org.arbizu.traffic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Time-range reads over the per-sensor monthly segments written by {@link DataLogger}.
+ * A range may span any number of months; only the segments it overlaps are opened,
+ * and within a segment only the records inside the range are read: binary segments
+ * are searched directly, CSV segments are mapped from the offset their
+ * {@link SparseTimeIndex} gives for the start of the range.
+ * @author alan
+ */
+class HistoryStore {
+	/** length of a logged {@code yyyy-MM-dd:HH:mm:ss} timestamp */
+	static final int TIME_LENGTH = 19;
+	static final String MAX_POINTS_PROPERTY = "traffic.history.maxPoints";
+	private static final int MAX_POINTS = Integer.getInteger(MAX_POINTS_PROPERTY, 500);
+	private static final long SAMPLE_SECONDS = TimeUnit.MINUTES.toSeconds(15);
+	private static final DateTimeFormatter FILE_NAME_FORMAT = DateTimeFormatter.ofPattern("MM-yyyy");
+	private static final DateTimeFormatter TIME_PARSE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd:HH:mm:ss");
+
+	private HistoryStore() { }
+
+	/**
+	 * Receives a read's samples, or its buckets, oldest first
+	 */
+	interface Sink {
+		void sample(long epochSeconds, int speed) throws IOException;
+
+		/** called with a reused bucket, copy what's needed */
+		void bucket(Rollup.Bucket b) throws IOException;
+	}
+
+	/**
+	 * One sensor's samples, or its rollup buckets, as parallel primitive columns
+	 */
+	static class Series implements Sink {
+		private final Rollup.Resolution resolution;
+		private long[] times = new long[64];
+		private int[] speeds = new int[64];
+		private int[] counts;
+		private int[] mins;
+		private int[] maxes;
+		private int[] lasts;
+		private int size;
+
+		Series() {
+			this(null);
+		}
+
+		/**
+		 * @param resolution bucket size, or null for raw samples
+		 */
+		Series(Rollup.Resolution resolution) {
+			this.resolution = resolution;
+			if (resolution != null) {
+				counts = new int[64];
+				mins = new int[64];
+				maxes = new int[64];
+				lasts = new int[64];
+			}
+		}
+
+		@Override
+		public void sample(long epochSeconds, int speed) {
+			add(epochSeconds, speed);
+		}
+
+		@Override
+		public void bucket(Rollup.Bucket b) {
+			add(b);
+		}
+
+		void add(long epochSeconds, int speed) {
+			if (size == times.length) {
+				grow();
+			}
+			times[size] = epochSeconds;
+			speeds[size] = speed;
+			++size;
+		}
+
+		/** a rollup bucket, with its mean as the speed */
+		void add(Rollup.Bucket b) {
+			if (size == times.length) {
+				grow();
+			}
+			times[size] = b.start;
+			speeds[size] = b.mean();
+			counts[size] = b.count;
+			mins[size] = b.min;
+			maxes[size] = b.max;
+			lasts[size] = b.last;
+			++size;
+		}
+
+		/** empty, keeping the columns for reuse */
+		void clear() {
+			size = 0;
+		}
+
+		private void grow() {
+			times = Arrays.copyOf(times, size * 2);
+			speeds = Arrays.copyOf(speeds, size * 2);
+			if (resolution != null) {
+				counts = Arrays.copyOf(counts, size * 2);
+				mins = Arrays.copyOf(mins, size * 2);
+				maxes = Arrays.copyOf(maxes, size * 2);
+				lasts = Arrays.copyOf(lasts, size * 2);
+			}
+		}
+
+		/**
+		 * @return the samples so far, sharing this series' columns; only valid while
+		 * this series is only ever appended to
+		 */
+		Series frozen() {
+			Series copy = new Series(resolution);
+			copy.times = times;
+			copy.speeds = speeds;
+			copy.counts = counts;
+			copy.mins = mins;
+			copy.maxes = maxes;
+			copy.lasts = lasts;
+			copy.size = size;
+			return copy;
+		}
+
+		Rollup.Resolution resolution() { return resolution; }
+		int size() { return size; }
+		long epochSeconds(int i) { return times[i]; }
+		int speed(int i) { return speeds[i]; }
+		int count(int i) { return counts[i]; }
+		int min(int i) { return mins[i]; }
+		int max(int i) { return maxes[i]; }
+		int last(int i) { return lasts[i]; }
+
+		/**
+		 * Write as {@code [["time",...],["speed",...]]} with string values, the layout
+		 * month files have always been served in; rollups add "min", "max", "last" and
+		 * "count" arrays
+		 */
+		void writeJson(JsonWriter w) throws IOException {
+			w.beginArray();
+			w.beginArray().value("time");
+			for (int i = 0; i < size; ++i) {
+				w.value(DataLogger.TIME_FORMAT.format(Instant.ofEpochSecond(times[i])));
+			}
+			w.endArray();
+			writeColumn(w, "speed", speeds);
+			if (resolution != null) {
+				writeColumn(w, "min", mins);
+				writeColumn(w, "max", maxes);
+				writeColumn(w, "last", lasts);
+				writeColumn(w, "count", counts);
+			}
+			w.endArray();
+		}
+
+		private void writeColumn(JsonWriter w, String name, int[] values) throws IOException {
+			w.beginArray().value(name);
+			for (int i = 0; i < size; ++i) {
+				w.value(Integer.toString(values[i]));
+			}
+			w.endArray();
+		}
+	}
+
+	/**
+	 * The coarsest data worth reading for a window: raw samples while the window
+	 * holds at most {@value #MAX_POINTS_PROPERTY} of them, otherwise the finest
+	 * rollup that does
+	 * @return the resolution, or null for raw samples
+	 */
+	static Rollup.Resolution resolutionFor(long from, long to) {
+		long window = to - from;
+		if (window / SAMPLE_SECONDS <= MAX_POINTS) {
+			return null;
+		}
+		for (Rollup.Resolution r : Rollup.Resolution.values()) {
+			if (window / r.getSeconds() <= MAX_POINTS) {
+				return r;
+			}
+		}
+		return Rollup.Resolution.DAILY;
+	}
+
+	/**
+	 * @return the sensor's samples with {@code from <= time <= to}, oldest first
+	 */
+	static Series read(int sensor, long from, long to) throws IOException {
+		return read(sensor, from, to, null);
+	}
+
+	/**
+	 * @param resolution rollup to read, or null for raw samples
+	 * @return the sensor's samples or buckets within {@code from <= time <= to},
+	 * oldest first; the bucket holding {@code from} is included
+	 */
+	static Series read(int sensor, long from, long to, Rollup.Resolution resolution) throws IOException {
+		Series series = new Series(resolution);
+		read(sensor, from, to, resolution, series);
+		return series;
+	}
+
+	/**
+	 * Pass the sensor's samples or buckets within {@code from <= time <= to} to {@code sink}
+	 * as they're read, oldest first
+	 * @param resolution rollup to read, or null for raw samples
+	 */
+	static void read(int sensor, long from, long to, Rollup.Resolution resolution, Sink series) throws IOException {
+		ZoneId zone = ZoneId.systemDefault();
+		YearMonth month = YearMonth.from(Instant.ofEpochSecond(from).atZone(zone));
+		YearMonth last = YearMonth.from(Instant.ofEpochSecond(to).atZone(zone));
+		for (; !month.isAfter(last); month = month.plusMonths(1)) {
+			String key = FILE_NAME_FORMAT.format(month) + "-" + sensor;
+			LiveSeries.Column live = LiveSeries.get(key);
+			if (resolution == null && live != null) {
+				live.read(from, to, series); // the open month
+			} else if (resolution == null) {
+				readSegment(key, from, to, series);
+			} else if (Rollup.exists(resolution, key)) {
+				readRollup(Rollup.openReader(resolution.pathFor(key)), resolution.bucketStart(from), to, series);
+			} else {
+				rollUp(key, resolution, from, to, series); // months logged before rollups were kept
+			}
+		}
+	}
+
+	/**
+	 * Add one segment's samples within {@code from <= time <= to}; nothing if there's no such segment
+	 */
+	static void readSegment(String key, long from, long to, Sink series) throws IOException {
+		SegmentFormat format = SegmentFormat.locate(key);
+		if (format == SegmentFormat.BINARY) {
+			readBinary(BinarySegment.openReader(format.pathFor(key)), from, to, series);
+		} else if (format == SegmentFormat.CSV) {
+			readCsv(key, from, to, series);
+		}
+	}
+
+	private static void readRollup(Rollup.Reader rollup, long from, long to, Sink series) throws IOException {
+		int lo = 0;
+		int hi = rollup.count();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (rollup.bucketStart(mid) < from) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		Rollup.Bucket b = new Rollup.Bucket();
+		for (int i = lo; i < rollup.count() && rollup.bucketStart(i) <= to; ++i) {
+			b.start = rollup.bucketStart(i);
+			b.count = rollup.sampleCount(i);
+			b.min = rollup.min(i);
+			b.max = rollup.max(i);
+			b.last = rollup.last(i);
+			b.sum = rollup.sum(i);
+			if (b.count > 0) {
+				series.bucket(b);
+			}
+		}
+	}
+
+	private static void rollUp(String key, Rollup.Resolution resolution, long from, long to, Sink series) throws IOException {
+		Rollup.Bucket b = new Rollup.Bucket();
+		readSegment(key, resolution.bucketStart(from), to, new Sink() {
+			@Override
+			public void sample(long epochSeconds, int speed) throws IOException {
+				long start = resolution.bucketStart(epochSeconds);
+				if (start != b.start) {
+					if (b.count > 0) series.bucket(b);
+					b.reset(start);
+				}
+				b.add(speed);
+			}
+
+			@Override
+			public void bucket(Rollup.Bucket ignored) { }
+		});
+		if (b.count > 0) series.bucket(b);
+	}
+
+	private static void readBinary(BinarySegment.Reader segment, long from, long to, Sink series) throws IOException {
+		for (int i = firstAtOrAfter(segment, from); i < segment.count(); ++i) {
+			long time = segment.epochSeconds(i);
+			if (time > to) break;
+			series.sample(time, segment.speed(i));
+		}
+	}
+
+	/** records are in time order, so binary search for the start of the range */
+	private static int firstAtOrAfter(BinarySegment.Reader segment, long from) {
+		int lo = 0;
+		int hi = segment.count();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (segment.epochSeconds(mid) < from) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private static void readCsv(String key, long from, long to, Sink series) throws IOException {
+		Path path = SegmentFormat.CSV.pathFor(key);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long start = SparseTimeIndex.seek(path, from, size);
+			MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, Math.max(0, start), size - Math.max(0, start));
+			int lineStart = 0;
+			if (start < 0) {
+				while (lineStart < data.limit() && data.get(lineStart++) != '\n') { } // header
+			}
+			for (int i = lineStart; i < data.limit(); ++i) {
+				if (data.get(i) != '\n') continue;
+				if (i - lineStart > TIME_LENGTH && data.get(lineStart + TIME_LENGTH) == ',') {
+					long time = parseTime(data, lineStart);
+					if (time > to) break;
+					if (time >= from) {
+						series.sample(time, parseInt(data, lineStart + TIME_LENGTH + 1, i));
+					}
+				}
+				lineStart = i + 1; // an unterminated last line is still being written
+			}
+		}
+	}
+
+	/**
+	 * Parse a logged {@code yyyy-MM-dd:HH:mm:ss} local timestamp in place
+	 */
+	static long parseTime(ByteBuffer data, int at) {
+		return LocalDateTime.of(
+				parseInt(data, at, at + 4),
+				parseInt(data, at + 5, at + 7),
+				parseInt(data, at + 8, at + 10),
+				parseInt(data, at + 11, at + 13),
+				parseInt(data, at + 14, at + 16),
+				parseInt(data, at + 17, at + 19)).atZone(ZoneId.systemDefault()).toEpochSecond();
+	}
+
+	/** digits in {@code [from, to)}, stopping at the first non-digit after an optional sign */
+	private static int parseInt(ByteBuffer data, int from, int to) {
+		boolean negative = from < to && data.get(from) == '-';
+		int value = 0;
+		for (int i = negative ? from + 1 : from; i < to; ++i) {
+			int digit = data.get(i) - '0';
+			if (digit < 0 || digit > 9) break;
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * @param value a logged {@code yyyy-MM-dd:HH:mm:ss} local timestamp
+	 */
+	static long parseTime(String value) {
+		return LocalDateTime.parse(value, TIME_PARSE_FORMAT).atZone(ZoneId.systemDefault()).toEpochSecond();
+	}
+
+	/**
+	 * Parse a query time: epoch seconds, a {@code yyyy-MM-dd:HH:mm:ss} local timestamp,
+	 * or a negative offset from {@code now} such as {@code -6h}, {@code -30m} or {@code -2d}
+	 */
+	static long parseQueryTime(String value, long now) {
+		if (value.startsWith("-") && value.length() > 2) {
+			long amount = Long.parseLong(value.substring(1, value.length() - 1));
+			switch (value.charAt(value.length() - 1)) {
+				case 'm': return now - amount * 60;
+				case 'h': return now - amount * 3600;
+				case 'd': return now - amount * 86400;
+				default: break;
+			}
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException notEpoch) {
+			try {
+				return parseTime(value);
+			} catch (DateTimeParseException e) {
+				throw new IllegalArgumentException("bad time: " + value);
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package org.arbizu.traffic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The open month's history, per segment, held in memory as it's logged so that
+ * reads of the current month don't go to disk.  Samples are appended to primitive
+ * columns as {@link DataLogger} logs them; whatever the segment held before this
+ * process started logging to it is read once, the first time the segment is asked for.
+ * The previous month's columns are dropped when the month turns over.
+ * @author alan
+ */
+class LiveSeries implements DataLogger.Listener {
+	static final LiveSeries INSTANCE = new LiveSeries();
+
+	private final Map<String, Column> columns = new ConcurrentHashMap<>();
+	private volatile String month;
+	/** nothing before this process started can still be on its way to disk */
+	private volatile long lastLogged = System.currentTimeMillis() / 1000 - 1;
+
+	private LiveSeries() { }
+
+	/**
+	 * @return the open segment {@code key}, or null if nothing has been logged to it yet
+	 */
+	static Column get(String key) {
+		return INSTANCE.columns.get(key);
+	}
+
+	/**
+	 * @return the latest sample time logged; anything logged from now on is newer, as
+	 * long as samples are written in order
+	 */
+	static long lastLogged() {
+		return INSTANCE.lastLogged;
+	}
+
+	@Override
+	public void appended(String key, long epochSeconds, int speed) {
+		if (epochSeconds > lastLogged) {
+			lastLogged = epochSeconds; // appends come one at a time, under the DataLogger's lock
+		}
+		String prefix = key.substring(0, key.lastIndexOf('-'));
+		if (!prefix.equals(month)) {
+			columns.clear(); // month rollover, the closed month is read from disk from now on
+			month = prefix;
+		}
+		columns.computeIfAbsent(key, Column::new).append(epochSeconds, speed);
+	}
+
+	@Override
+	public void flushed(String key) { }
+
+	/**
+	 * One segment's samples, oldest first.  The monitor only guards the columns: reading
+	 * the disk and encoding happen outside it, on a {@link HistoryStore.Series#frozen}
+	 * copy, so a request for the open month never holds up logging for long.
+	 */
+	static class Column {
+		private final String key;
+		private HistoryStore.Series series = new HistoryStore.Series();
+		private boolean complete;
+		private ResponseBody payload;
+		private int payloadSize;
+
+		private Column(String key) {
+			this.key = key;
+		}
+
+		private synchronized void append(long epochSeconds, int speed) {
+			series.add(epochSeconds, speed);
+		}
+
+		/**
+		 * Pick up whatever was on disk before the first sample appended here.  The file
+		 * is read unlocked, up to that first sample, then spliced in front of what's
+		 * been appended meanwhile; if two readers race, the first to finish wins.
+		 */
+		private void complete() throws IOException {
+			long firstAppended;
+			synchronized (this) {
+				if (complete || series.size() == 0) {
+					return; // an empty column is only seen between its creation and first append
+				}
+				firstAppended = series.epochSeconds(0);
+			}
+			HistoryStore.Series all = new HistoryStore.Series();
+			HistoryStore.readSegment(key, 0, firstAppended - 1, all);
+			synchronized (this) {
+				if (complete) {
+					return;
+				}
+				for (int i = 0; i < series.size(); ++i) {
+					all.add(series.epochSeconds(i), series.speed(i));
+				}
+				series = all;
+				complete = true;
+			}
+		}
+
+		private synchronized HistoryStore.Series samples() {
+			return series.frozen();
+		}
+
+		/**
+		 * Pass on the samples with {@code from <= time <= to}.  The sink is called without
+		 * holding up logging, so it may write to a slow client.
+		 */
+		void read(long from, long to, HistoryStore.Sink into) throws IOException {
+			complete();
+			HistoryStore.Series samples = samples();
+			for (int i = 0; i < samples.size(); ++i) {
+				long time = samples.epochSeconds(i);
+				if (time > to) break;
+				if (time >= from) into.sample(time, samples.speed(i));
+			}
+		}
+
+		/**
+		 * @return the time of the latest sample, 0 if there's none
+		 */
+		synchronized long lastEpochSeconds() {
+			return (series.size() > 0) ? series.epochSeconds(series.size() - 1) : 0;
+		}
+
+		/**
+		 * @return the whole month as {@code [["time",...],["speed",...]]}, re-encoded
+		 * only when samples have been added since the last call.  A payload is only
+		 * published if no bigger one has been meanwhile.
+		 */
+		ResponseBody payload() throws IOException {
+			complete();
+			HistoryStore.Series samples;
+			synchronized (this) {
+				samples = series.frozen();
+				if (payload != null && payloadSize == samples.size()) {
+					return payload;
+				}
+			}
+			ByteArrayOutputStream b = new ByteArrayOutputStream(samples.size() * 32 + 32);
+			try (JsonWriter w = new JsonWriter(new OutputStreamWriter(b, StandardCharsets.UTF_8))) {
+				samples.writeJson(w);
+			}
+			long lastModified = (samples.size() > 0) ? samples.epochSeconds(samples.size() - 1) * 1000 : 0;
+			ResponseBody encoded = ResponseBody.of(b.toByteArray(), lastModified);
+			synchronized (this) {
+				if (payload == null || payloadSize < samples.size()) {
+					payload = encoded;
+					payloadSize = samples.size();
+				}
+			}
+			return encoded;
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package org.arbizu.traffic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Process-wide counters and latency histograms, served at {@code /metrics} in the
+ * Prometheus text format.
+ *
+ * Recording only adds to {@link LongAdder}s, which stripe under contention, so it
+ * takes no locks and is safe on the request and collection paths.  Code that records
+ * holds its {@link Counter} or {@link Histogram}; looking one up by label values is
+ * for setup.  Values read from elsewhere, such as {@link CacheStats}, are registered
+ * as callbacks and only read when scraped.
+ * @author alan
+ */
+class Metrics {
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	/** histogram bucket bounds, in seconds */
+	private static final double[] LATENCY_BUCKETS = {
+			0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+	private static final List<Family<?>> FAMILIES = new CopyOnWriteArrayList<>();
+	private static final Family<DoubleSupplier> CACHE_REQUESTS = callbacks("traffic_cache_requests_total", "counter",
+			"Cache lookups, by cache and result", "cache", "result");
+	private static final Family<DoubleSupplier> CACHE_LOADS = callbacks("traffic_cache_loads_total", "counter",
+			"Cache loads, by cache and outcome", "cache", "outcome");
+	private static final Family<DoubleSupplier> CACHE_LOAD_SECONDS = callbacks("traffic_cache_load_seconds_total", "counter",
+			"Time spent loading cache entries", "cache");
+	private static final Family<DoubleSupplier> CACHE_EVICTIONS = callbacks("traffic_cache_evictions_total", "counter",
+			"Cache entries evicted", "cache");
+	private static final Family<DoubleSupplier> CACHE_HIT_RATIO = callbacks("traffic_cache_hit_ratio", "gauge",
+			"Hits over lookups since startup, 1 before any lookup", "cache");
+	private static final Family<DoubleSupplier> CACHE_SIZE = callbacks("traffic_cache_size", "gauge",
+			"Cache entries", "cache");
+	private static final Family<Histogram> REQUEST_SECONDS = histograms("traffic_http_request_seconds",
+			"HTTP request handling time, by context", "handler");
+	private static final Family<Counter> RESPONSES = counters("traffic_http_responses_total",
+			"HTTP responses, by context and status class", "handler", "code");
+	private static final Family<Counter> RESPONSE_BYTES = counters("traffic_http_response_bytes_total",
+			"Response body bytes written, after compression, by context", "handler");
+
+	private Metrics() { }
+
+	/**
+	 * A count that only goes up
+	 */
+	static class Counter {
+		private final LongAdder value = new LongAdder();
+
+		void inc() {
+			value.increment();
+		}
+
+		void add(long n) {
+			value.add(n);
+		}
+
+		long get() {
+			return value.sum();
+		}
+	}
+
+	/**
+	 * Latencies counted into fixed buckets
+	 */
+	static class Histogram {
+		private static final long[] BOUNDS_NANOS = Arrays.stream(LATENCY_BUCKETS)
+				.mapToLong(seconds -> (long) (seconds * TimeUnit.SECONDS.toNanos(1))).toArray();
+		private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1]; // the last is +Inf
+		private final LongAdder sumNanos = new LongAdder();
+
+		private Histogram() {
+			for (int i = 0; i < buckets.length; ++i) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void observeNanos(long nanos) {
+			int i = 0;
+			while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+				++i;
+			}
+			buckets[i].increment();
+			sumNanos.add(nanos);
+		}
+
+		/**
+		 * @param startNanos a {@link System#nanoTime()} taken when the timed work began
+		 */
+		void observeSince(long startNanos) {
+			observeNanos(System.nanoTime() - startNanos);
+		}
+	}
+
+	/**
+	 * One metric name and its children, one per combination of label values
+	 */
+	static class Family<T> {
+		private final String name;
+		private final String type;
+		private final String help;
+		private final String[] labelNames;
+		private final Function<List<String>, T> factory;
+		private final Map<List<String>, T> children = new ConcurrentHashMap<>();
+
+		private Family(String name, String type, String help, String[] labelNames, Function<List<String>, T> factory) {
+			this.name = name;
+			this.type = type;
+			this.help = help;
+			this.labelNames = labelNames;
+			this.factory = factory;
+		}
+
+		/**
+		 * @return the child for these label values, in the order the labels were named
+		 */
+		T labels(String... values) {
+			if (values.length != labelNames.length) {
+				throw new IllegalArgumentException(name + " takes labels " + Arrays.toString(labelNames));
+			}
+			List<String> key = Arrays.asList(values);
+			T child = children.get(key);
+			return (child != null) ? child : children.computeIfAbsent(key, factory);
+		}
+
+		private void write(StringBuilder out) {
+			if (children.isEmpty()) {
+				return;
+			}
+			out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+			children.forEach((values, child) -> {
+				if (child instanceof Histogram) {
+					writeHistogram(out, values, (Histogram) child);
+				} else {
+					double value = (child instanceof Counter) ? ((Counter) child).get() : ((DoubleSupplier) child).getAsDouble();
+					out.append(name);
+					labels(out, values, null);
+					out.append(' ').append(format(value)).append('\n');
+				}
+			});
+		}
+
+		private void writeHistogram(StringBuilder out, List<String> values, Histogram h) {
+			long cumulative = 0;
+			for (int i = 0; i < h.buckets.length; ++i) {
+				cumulative += h.buckets[i].sum();
+				out.append(name).append("_bucket");
+				labels(out, values, (i < LATENCY_BUCKETS.length) ? format(LATENCY_BUCKETS[i]) : "+Inf");
+				out.append(' ').append(cumulative).append('\n');
+			}
+			out.append(name).append("_sum");
+			labels(out, values, null);
+			out.append(' ').append(format(h.sumNanos.sum() / 1e9)).append('\n');
+			out.append(name).append("_count");
+			labels(out, values, null);
+			out.append(' ').append(cumulative).append('\n');
+		}
+
+		private void labels(StringBuilder out, List<String> values, String le) {
+			if (labelNames.length == 0 && le == null) {
+				return;
+			}
+			out.append('{');
+			for (int i = 0; i < labelNames.length; ++i) {
+				if (i > 0) out.append(',');
+				out.append(labelNames[i]).append("=\"").append(escape(values.get(i))).append('"');
+			}
+			if (le != null) {
+				out.append((labelNames.length > 0) ? "," : "").append("le=\"").append(le).append('"');
+			}
+			out.append('}');
+		}
+	}
+
+	private static <T> Family<T> register(Family<T> family) {
+		FAMILIES.add(family);
+		return family;
+	}
+
+	static Family<Counter> counters(String name, String help, String... labelNames) {
+		return register(new Family<>(name, "counter", help, labelNames, values -> new Counter()));
+	}
+
+	static Counter counter(String name, String help) {
+		return counters(name, help).labels();
+	}
+
+	static Family<Histogram> histograms(String name, String help, String... labelNames) {
+		return register(new Family<>(name, "histogram", help, labelNames, values -> new Histogram()));
+	}
+
+	static Histogram histogram(String name, String help) {
+		return histograms(name, help).labels();
+	}
+
+	/**
+	 * A family whose values are read from elsewhere when scraped; add children with {@link #callback}
+	 * @param type {@code counter} or {@code gauge}
+	 */
+	static Family<DoubleSupplier> callbacks(String name, String type, String help, String... labelNames) {
+		return register(new Family<>(name, type, help, labelNames, values -> () -> Double.NaN));
+	}
+
+	static void callback(Family<DoubleSupplier> family, DoubleSupplier value, String... labelValues) {
+		family.children.put(Arrays.asList(labelValues), value);
+	}
+
+	/**
+	 * Export a cache's {@link CacheStats}; the cache must be built with {@code recordStats()}
+	 */
+	static void cache(String name, Cache<?, ?> cache) {
+		callback(CACHE_REQUESTS, () -> cache.stats().hitCount(), name, "hit");
+		callback(CACHE_REQUESTS, () -> cache.stats().missCount(), name, "miss");
+		callback(CACHE_LOADS, () -> cache.stats().loadSuccessCount(), name, "success");
+		callback(CACHE_LOADS, () -> cache.stats().loadExceptionCount(), name, "failure");
+		callback(CACHE_LOAD_SECONDS, () -> cache.stats().totalLoadTime() / 1e9, name);
+		callback(CACHE_EVICTIONS, () -> cache.stats().evictionCount(), name);
+		callback(CACHE_HIT_RATIO, () -> cache.stats().hitRate(), name);
+		callback(CACHE_SIZE, cache::size, name);
+	}
+
+	/**
+	 * Times each request in a context and counts its responses and body bytes
+	 */
+	static Filter filter(String handler) {
+		Histogram time = REQUEST_SECONDS.labels(handler);
+		Counter bytes = RESPONSE_BYTES.labels(handler);
+		Counter[] byClass = new Counter[6];
+		for (int i = 2; i < byClass.length; ++i) {
+			byClass[i] = RESPONSES.labels(handler, i + "xx");
+		}
+		return new Filter() {
+			@Override
+			public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+				long start = System.nanoTime();
+				exchange.setStreams(null, new CountingStream(exchange.getResponseBody(), bytes));
+				try {
+					chain.doFilter(exchange);
+				} finally {
+					time.observeSince(start);
+					int status = exchange.getResponseCode() / 100;
+					if (status >= 2 && status < byClass.length) {
+						byClass[status].inc();
+					}
+				}
+			}
+
+			@Override
+			public String description() {
+				return "metrics for " + handler;
+			}
+		};
+	}
+
+	/**
+	 * Counts what's written through it; the count is added as it goes, so a response
+	 * that fails half way still shows what was sent
+	 */
+	private static class CountingStream extends OutputStream {
+		private final OutputStream out;
+		private final Counter bytes;
+
+		CountingStream(OutputStream out, Counter bytes) {
+			this.out = out;
+			this.bytes = bytes;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytes.inc();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytes.add(len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	static HttpHandler handler() {
+		return exchange -> {
+			byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			ResponseBody.send(exchange, body);
+		};
+	}
+
+	/**
+	 * @return every metric in the Prometheus text format
+	 */
+	static String scrape() {
+		StringBuilder out = new StringBuilder(8192);
+		for (Family<?> family : FAMILIES) {
+			family.write(out);
+		}
+		return out.toString();
+	}
+
+	private static String format(double value) {
+		if (Double.isNaN(value)) return "NaN";
+		if (Double.isInfinite(value)) return (value > 0) ? "+Inf" : "-Inf";
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) return String.valueOf((long) value);
+		return String.valueOf(value);
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
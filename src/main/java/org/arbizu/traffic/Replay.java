@@ -0,0 +1,191 @@
+package org.arbizu.traffic;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Offline replay: saved feeds pushed through {@link DataSource#collect} and
+ * {@link TrafficLogging} as if polled every 15 minutes, faster than real time, to
+ * measure ingest and history query capacity without going to the upstream site.
+ *
+ * {@code java -cp traffic.jar org.arbizu.traffic.Replay <dir>} replays the {@code *.json}
+ * feeds in {@code dir} in name order, as saved with {@value DataSource#CAPTURE_PROPERTY},
+ * through {@link FileDataReader}.  Configured with:
+ * <ul>
+ *     <li>{@value #POLLS_PROPERTY}: polls to replay, cycling through the feeds; one pass by default</li>
+ *     <li>{@value #START_PROPERTY}: the first poll's time, as a {@code /r} query time;
+ *     by default the last poll is now</li>
+ *     <li>{@value #SPEEDUP_PROPERTY}: how many times faster than real time polls come,
+ *     0 (the default) for as fast as they can be collected</li>
+ * </ul>
+ * Sensor names come from {@value #METADATA_FILE} in the directory if it's there, else the
+ * bundled metadata.  Ingest always blocks for as long as the queue is full, whatever
+ * {@value TrafficLogging#BACKPRESSURE_PROPERTY} says, so a replay never loses samples to
+ * go faster; if any poll is dropped anyway the run fails.  History is written under {@value DataLogger#DIR_PROPERTY}, which
+ * defaults to {@code replay-logs} here so a replay never mixes with collected history.
+ * Once logging has caught up, each sensor's replayed window is read back, raw and at the
+ * resolution {@code /r} would pick, and the throughput of every stage is printed.
+ * @author alan
+ */
+class Replay {
+	static final String POLLS_PROPERTY = "traffic.replay.polls";
+	static final String START_PROPERTY = "traffic.replay.start";
+	static final String SPEEDUP_PROPERTY = "traffic.replay.speedup";
+	private static final String METADATA_FILE = "NoCalStatic.js";
+	private static final String LOG_FILE_NAME = "replay.log";
+	private static final long POLL_SECONDS = TimeUnit.MINUTES.toSeconds(15);
+	private static final long QUIET_MILLIS = 2000;
+
+	private final AutoflushingLogger logger;
+	private final File[] feeds;
+	private final File metadata;
+	private final LongAdder appended = new LongAdder();
+	private volatile long lastAppendNanos;
+
+	private Replay(AutoflushingLogger logger, File[] feeds, File metadata) {
+		this.logger = logger;
+		this.feeds = feeds;
+		this.metadata = metadata;
+	}
+
+	private SensorNameCache names() throws IOException {
+		if (metadata.isFile()) {
+			try (BufferedReader r = Files.newBufferedReader(metadata.toPath(), StandardCharsets.UTF_8)) {
+				return SensorNameCache.fixed(r, logger);
+			}
+		}
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(
+				Replay.class.getResourceAsStream(DataSource.SourceType.METADATA.getFallback()), StandardCharsets.UTF_8))) {
+			return SensorNameCache.fixed(r, logger);
+		}
+	}
+
+	/**
+	 * @return polls dropped before reaching history
+	 */
+	private long run(int polls, long start, double speedup) throws Exception {
+		SensorRegistry registry = SensorRegistry.load(logger);
+		DataSource source = new DataSource(logger, registry, names());
+		DataLogger.addListener(new DataLogger.Listener() {
+			@Override
+			public void appended(String key, long epochSeconds, int speed) {
+				appended.increment();
+				lastAppendNanos = System.nanoTime();
+			}
+
+			@Override
+			public void flushed(String key) { }
+		});
+
+		long collectNanos = 0;
+		long snapshotNanos = 0;
+		long feedBytes = 0;
+		long began = System.nanoTime();
+		for (int i = 0; i < polls; ++i) {
+			if (speedup > 0) {
+				long due = began + (long) (TimeUnit.SECONDS.toNanos(POLL_SECONDS) * i / speedup);
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+			}
+			File feed = feeds[i % feeds.length];
+			long t0 = System.nanoTime();
+			Map<String, byte[]> corridors = source.collect(FileDataReader.create(feed.getPath(), logger), start + i * POLL_SECONDS);
+			long t1 = System.nanoTime();
+			TrafficSnapshot.create(corridors);
+			snapshotNanos += System.nanoTime() - t1;
+			collectNanos += t1 - t0;
+			feedBytes += feed.length();
+		}
+		long collected = System.nanoTime();
+
+		// logging runs behind collection, wait for it to go quiet
+		long seen = -1;
+		while (appended.sum() != seen) {
+			seen = appended.sum();
+			Thread.sleep(QUIET_MILLIS);
+		}
+		long samples = appended.sum();
+		long ingestNanos = Math.max(1, lastAppendNanos - began);
+		long dropped = TrafficLogging.dropped();
+
+		long end = start + (polls - 1) * POLL_SECONDS;
+		Rollup.Resolution resolution = HistoryStore.resolutionFor(start, end);
+		long rawPoints = 0;
+		long rolledPoints = 0;
+		long rawNanos = 0;
+		long rolledNanos = 0;
+		for (int id = 0; id < registry.sensorCount(); ++id) {
+			long t0 = System.nanoTime();
+			rawPoints += HistoryStore.read(id, start, end).size();
+			long t1 = System.nanoTime();
+			rolledPoints += HistoryStore.read(id, start, end, resolution).size();
+			rolledNanos += System.nanoTime() - t1;
+			rawNanos += t1 - t0;
+		}
+
+		int sensors = registry.sensorCount();
+		System.out.printf("replayed %d polls of %d feeds, %d sensors, %.1fs wall%n",
+				polls, feeds.length, sensors, seconds(collected - began));
+		System.out.printf("%-14s %10s %12s %14s%n", "stage", "count", "seconds", "per second");
+		row("collect", polls, collectNanos, String.format("%.1f MB/s", feedBytes / 1e6 / seconds(collectNanos)));
+		row("snapshot", polls, snapshotNanos, "");
+		row("ingest", samples, ingestNanos, "samples, " + dropped + " polls dropped");
+		row("read raw", sensors, rawNanos, rawPoints + " points");
+		if (resolution != null) {
+			row("read " + resolution.getLabel(), sensors, rolledNanos, rolledPoints + " points");
+		}
+		return dropped;
+	}
+
+	private static void row(String stage, long count, long nanos, String note) {
+		System.out.printf("%-14s %10d %12.3f %14.1f  %s%n", stage, count, seconds(nanos), count / seconds(nanos), note);
+	}
+
+	private static double seconds(long nanos) {
+		return Math.max(1, nanos) / 1e9;
+	}
+
+	public static void main(String... args) throws Exception {
+		if (args.length != 1) {
+			System.err.println("usage: Replay <directory of saved feeds>");
+			System.exit(1);
+		}
+		if (System.getProperty(DataLogger.DIR_PROPERTY) == null) {
+			System.setProperty(DataLogger.DIR_PROPERTY, "replay-logs"); // before anything opens the store
+		}
+		// lossless ingest, before TrafficLogging starts
+		System.setProperty(TrafficLogging.BACKPRESSURE_PROPERTY, "block");
+		System.setProperty(TrafficLogging.BLOCK_MILLIS_PROPERTY, "-1");
+		File dir = new File(args[0]);
+		File[] feeds = dir.listFiles((d, name) -> name.endsWith(".json"));
+		if (feeds == null || feeds.length == 0) {
+			System.err.println("no *.json feeds in " + dir);
+			System.exit(1);
+		}
+		Arrays.sort(feeds);
+		int polls = Integer.getInteger(POLLS_PROPERTY, feeds.length);
+		double speedup = Double.parseDouble(System.getProperty(SPEEDUP_PROPERTY, "0"));
+		long now = System.currentTimeMillis() / 1000;
+		String startValue = System.getProperty(START_PROPERTY);
+		long start = (startValue != null) ? HistoryStore.parseQueryTime(startValue, now) : now - (polls - 1) * POLL_SECONDS;
+
+		Logger l = Logger.getLogger(Replay.class.getName());
+		Replay replay = new Replay(new AutoflushingLogger(l, Replay.class.getName(), LOG_FILE_NAME), feeds, new File(dir, METADATA_FILE));
+		long dropped = replay.run(polls, start, speedup);
+		if (dropped > 0) {
+			System.err.println(dropped + " polls were dropped before reaching history, the results are incomplete");
+			System.exit(1);
+		}
+	}
+}
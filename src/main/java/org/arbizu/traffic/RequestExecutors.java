@@ -0,0 +1,92 @@
+package org.arbizu.traffic;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Builds the executor the embedded HttpServer runs its handlers on, chosen with
+ * the {@code traffic.server.*} system properties:
+ * <ul>
+ *     <li>{@value #MODE_PROPERTY}: {@code pool} (default), {@code virtual} for a
+ *     virtual thread per request on JDK 21+ (a pool is used on older runtimes),
+ *     or {@code dispatcher} to run everything on the server's own thread as before</li>
+ *     <li>{@value #THREADS_PROPERTY}: pool size, defaults to the number of cores</li>
+ *     <li>{@value #QUEUE_PROPERTY}: requests allowed to wait for a pool thread</li>
+ *     <li>{@value #REJECTION_PROPERTY}: what to do with a request when the queue is
+ *     full, {@code caller} runs it on the dispatcher thread, {@code abort} drops the
+ *     connection</li>
+ * </ul>
+ *
+ * @author alan
+ */
+class RequestExecutors {
+    static final String MODE_PROPERTY = "traffic.server.executor";
+    static final String THREADS_PROPERTY = "traffic.server.threads";
+    static final String QUEUE_PROPERTY = "traffic.server.queue";
+    static final String REJECTION_PROPERTY = "traffic.server.rejection";
+    private static final int DEFAULT_QUEUE_SIZE = 64;
+
+    private RequestExecutors() { }
+
+    /**
+     * @return the configured executor, or null for the HttpServer's default dispatcher thread
+     */
+    static Executor create(AutoflushingLogger logger) {
+        String mode = System.getProperty(MODE_PROPERTY, "pool");
+        if ("dispatcher".equalsIgnoreCase(mode)) {
+            return null;
+        }
+        if ("virtual".equalsIgnoreCase(mode)) {
+            Executor virtual = virtualThreadPerTask();
+            if (virtual != null) {
+                logger.log(Level.INFO, "http executor: virtual thread per request", new Object[] {});
+                return virtual;
+            }
+            logger.log(Level.WARNING, "virtual threads need JDK 21+, using a pool", new Object[] {});
+        }
+        int threads = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+        int queue = Integer.getInteger(QUEUE_PROPERTY, DEFAULT_QUEUE_SIZE);
+        String rejection = System.getProperty(REJECTION_PROPERTY, "caller");
+        RejectedExecutionHandler policy = "abort".equalsIgnoreCase(rejection)
+                ? new ThreadPoolExecutor.AbortPolicy()
+                : new ThreadPoolExecutor.CallerRunsPolicy();
+        Metrics.Counter rejected = Metrics.counter("traffic_http_rejected_total",
+                "Requests that found the executor queue full, and were run by the dispatcher or dropped");
+        RejectedExecutionHandler handler = (task, executor) -> {
+            rejected.inc();
+            policy.rejectedExecution(task, executor);
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queue), namedThreads("http-worker"), handler);
+        pool.allowCoreThreadTimeOut(true);
+        Metrics.callback(Metrics.callbacks("traffic_http_queued", "gauge", "Requests waiting for a worker"), pool.getQueue()::size);
+        logger.log(Level.INFO, "http executor: pool threads={0},queue={1},rejection={2}", new Object[] { threads, queue, rejection });
+        return pool;
+    }
+
+    private static Executor virtualThreadPerTask() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
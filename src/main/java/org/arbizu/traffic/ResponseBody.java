@@ -0,0 +1,318 @@
+package org.arbizu.traffic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hashing;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A response body encoded once, at the time its data changes, with its gzip form
+ * alongside when it's at least {@value #MIN_BYTES_PROPERTY} bytes (1KB by default).
+ *
+ * The gzip form is kept as a byte-aligned deflate segment, so a per-request prefix
+ * and suffix such as a JSONP {@code callback(...)} can be spliced around it without
+ * compressing the body again.  Only gzip is offered: {@code deflate} has never been
+ * interpreted consistently by clients.
+ *
+ * Sends are conditional: each carries a strong {@code ETag} made from a hash of the
+ * body taken once, plus the prefix and the encoding, and {@code Last-Modified} when the
+ * data's time is known.  A matching {@code If-None-Match}, or failing that a
+ * satisfied {@code If-Modified-Since}, gets a bodiless 304.  {@link #uncacheable} bodies
+ * are the exception.
+ *
+ * @author alan
+ */
+class ResponseBody {
+	static final String MIN_BYTES_PROPERTY = "traffic.http.compressMinBytes";
+	static final int MIN_BYTES = Integer.getInteger(MIN_BYTES_PROPERTY, 1024);
+	private static final byte[] NONE = new byte[0];
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+	private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+	private final byte[] identity;
+	private final byte[] deflated; // sync-flushed, not final; null when not worth compressing
+	private final byte[] gzip; // the whole body alone
+	private final String tag;
+	private final long lastModifiedMillis;
+	private final boolean cacheable;
+
+	private ResponseBody(byte[] identity, byte[] deflated, byte[] gzip, long lastModifiedMillis, boolean cacheable) {
+		this.identity = identity;
+		this.deflated = deflated;
+		this.gzip = gzip;
+		this.tag = Hashing.murmur3_128().hashBytes(identity).toString().substring(0, 16);
+		this.lastModifiedMillis = lastModifiedMillis;
+		this.cacheable = cacheable;
+	}
+
+	/**
+	 * Encode {@code identity} now; it is shared, not copied
+	 */
+	static ResponseBody of(byte[] identity) {
+		return of(identity, 0);
+	}
+
+	/**
+	 * @param lastModifiedMillis when the data last changed, or 0 if unknown
+	 */
+	static ResponseBody of(byte[] identity, long lastModifiedMillis) {
+		return of(identity, lastModifiedMillis, true);
+	}
+
+	/**
+	 * A body no one should keep, such as an error that may be gone on the next request:
+	 * sent with {@code Cache-Control: no-store} and without validators
+	 */
+	static ResponseBody uncacheable(byte[] identity) {
+		return of(identity, 0, false);
+	}
+
+	private static ResponseBody of(byte[] identity, long lastModifiedMillis, boolean cacheable) {
+		if (identity.length < MIN_BYTES) {
+			return new ResponseBody(identity, null, null, lastModifiedMillis, cacheable);
+		}
+		byte[] deflated = deflate(identity);
+		return new ResponseBody(identity, deflated, gzip(NONE, deflated, NONE, identity.length, crc(identity)),
+				lastModifiedMillis, cacheable);
+	}
+
+	byte[] identity() {
+		return identity;
+	}
+
+	/** bytes held, for cache weighing */
+	int weight() {
+		return identity.length + ((deflated != null) ? deflated.length + gzip.length : 0);
+	}
+
+	/**
+	 * Send with status 200, gzipped if the client takes it and the body's big enough
+	 * @param prefix written before the body, e.g. a JSONP callback and parenthesis
+	 * @param suffix written after it
+	 */
+	void send(HttpExchange exchange, byte[] prefix, byte[] suffix) throws IOException {
+		boolean gzipped = deflated != null && acceptsGzip(exchange);
+		Headers headers = exchange.getResponseHeaders();
+		headers.set("Vary", "Accept-Encoding");
+		if (!cacheable) {
+			headers.set("Cache-Control", "no-store");
+		} else if (sendIfNotModified(exchange, etag(prefix, suffix, gzipped), lastModifiedMillis)) {
+			return;
+		}
+		byte[] body = null;
+		if (gzipped) {
+			body = (prefix.length == 0 && suffix.length == 0) ? gzip : gzip(prefix, deflated, suffix,
+					prefix.length + identity.length + suffix.length, crc(prefix, identity, suffix));
+			headers.set("Content-Encoding", "gzip");
+		}
+		try (OutputStream os = exchange.getResponseBody()) {
+			if (body != null) {
+				exchange.sendResponseHeaders(200, body.length);
+				os.write(body);
+			} else {
+				exchange.sendResponseHeaders(200, prefix.length + identity.length + suffix.length);
+				os.write(prefix);
+				os.write(identity);
+				os.write(suffix);
+			}
+		}
+	}
+
+	void send(HttpExchange exchange) throws IOException {
+		send(exchange, NONE, NONE);
+	}
+
+	private String etag(byte[] prefix, byte[] suffix, boolean gzipped) {
+		StringBuilder etag = new StringBuilder(40).append('"').append(tag);
+		if (prefix.length > 0 || suffix.length > 0) {
+			etag.append('-').append(Hashing.murmur3_32_fixed().newHasher()
+					.putBytes(prefix).putByte((byte) 0).putBytes(suffix).hash());
+		}
+		return etag.append(gzipped ? "-gz\"" : "\"").toString();
+	}
+
+	/**
+	 * Label a response with its validators, and answer a request that already has it
+	 * with a bodiless 304
+	 * @param lastModifiedMillis when the data last changed, or 0 if unknown
+	 * @return true if the 304 was sent and the exchange is done
+	 */
+	static boolean sendIfNotModified(HttpExchange exchange, String etag, long lastModifiedMillis) throws IOException {
+		Headers headers = exchange.getResponseHeaders();
+		headers.set("ETag", etag);
+		if (lastModifiedMillis > 0) {
+			headers.set("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(lastModifiedMillis)));
+		}
+		if (!notModified(exchange, etag, lastModifiedMillis)) {
+			return false;
+		}
+		headers.set("Vary", "Accept-Encoding");
+		exchange.sendResponseHeaders(304, -1);
+		exchange.close();
+		return true;
+	}
+
+	private static boolean notModified(HttpExchange exchange, String etag, long lastModifiedMillis) {
+		Headers request = exchange.getRequestHeaders();
+		List<String> noneMatch = request.get("If-None-Match");
+		if (noneMatch != null) {
+			for (String header : noneMatch) {
+				for (String candidate : COMMA_SPLITTER.split(header)) {
+					if ("*".equals(candidate) || etag.equals(candidate.startsWith("W/") ? candidate.substring(2) : candidate)) {
+						return true;
+					}
+				}
+			}
+			return false; // If-Modified-Since is ignored when there are tags to compare
+		}
+		String modifiedSince = request.getFirst("If-Modified-Since");
+		if (modifiedSince == null || lastModifiedMillis <= 0) {
+			return false;
+		}
+		try {
+			long since = ZonedDateTime.parse(modifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+			return lastModifiedMillis / 1000 <= since;
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Send a one-off body with status 200, compressing it for this request if worthwhile
+	 */
+	static void send(HttpExchange exchange, byte[] body) throws IOException {
+		if (body.length >= MIN_BYTES && acceptsGzip(exchange)) {
+			ByteArrayOutputStream gz = new ByteArrayOutputStream(body.length / 4);
+			try (GZIPOutputStream out = new GZIPOutputStream(gz)) {
+				out.write(body);
+			}
+			body = gz.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	/**
+	 * Start a chunked 200 response
+	 * @return the stream to write it to, gzipping if the client takes it
+	 */
+	static OutputStream stream(HttpExchange exchange) throws IOException {
+		boolean gzip = acceptsGzip(exchange);
+		if (gzip) {
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+		exchange.sendResponseHeaders(200, 0);
+		return gzip ? new GZIPOutputStream(exchange.getResponseBody(), 8192) : exchange.getResponseBody();
+	}
+
+	/**
+	 * @return true unless the client didn't offer gzip, or offered it with q=0
+	 */
+	static boolean acceptsGzip(HttpExchange exchange) {
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (accept == null) {
+			return false;
+		}
+		for (String coding : COMMA_SPLITTER.split(accept)) {
+			int params = coding.indexOf(';');
+			String name = (params < 0) ? coding : coding.substring(0, params).trim();
+			if ("gzip".equalsIgnoreCase(name) || "*".equals(name)) {
+				return params < 0 || !coding.substring(params + 1).replace(" ", "").matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Raw deflate of {@code data} ending on a byte boundary, with no final block, so
+	 * more deflate data can follow it
+	 */
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(data);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+			byte[] buffer = new byte[4096];
+			int n;
+			do {
+				n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+				out.write(buffer, 0, n);
+			} while (n == buffer.length);
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/** raw deflate of {@code data} as the stream's final block(s) */
+	private static byte[] deflateFinal(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 16);
+			byte[] buffer = new byte[256];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * A gzip member of prefix, body and suffix, where the body is already deflated
+	 */
+	private static byte[] gzip(byte[] prefix, byte[] deflatedBody, byte[] suffix, long size, long crc) {
+		byte[] head = (prefix.length > 0) ? deflate(prefix) : NONE;
+		byte[] tail = deflateFinal(suffix); // possibly an empty final block
+		byte[] out = new byte[GZIP_HEADER.length + head.length + deflatedBody.length + tail.length + 8];
+		int at = 0;
+		System.arraycopy(GZIP_HEADER, 0, out, at, GZIP_HEADER.length);
+		at += GZIP_HEADER.length;
+		System.arraycopy(head, 0, out, at, head.length);
+		at += head.length;
+		System.arraycopy(deflatedBody, 0, out, at, deflatedBody.length);
+		at += deflatedBody.length;
+		System.arraycopy(tail, 0, out, at, tail.length);
+		at += tail.length;
+		writeIntLE(out, at, (int) crc);
+		writeIntLE(out, at + 4, (int) size);
+		return out;
+	}
+
+	private static long crc(byte[]... parts) {
+		CRC32 crc = new CRC32();
+		for (byte[] part : parts) {
+			crc.update(part, 0, part.length);
+		}
+		return crc.getValue();
+	}
+
+	private static void writeIntLE(byte[] out, int at, int value) {
+		out[at] = (byte) value;
+		out[at + 1] = (byte) (value >>> 8);
+		out[at + 2] = (byte) (value >>> 16);
+		out[at + 3] = (byte) (value >>> 24);
+	}
+}
@@ -0,0 +1,373 @@
+package org.arbizu.traffic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+
+/**
+ * Pre-aggregated history: per sensor, per month, one fixed-width file per
+ * {@link Resolution} next to the raw segment, {@code MM-yyyy-<id>.1h.tsr}.  A 16 byte
+ * header is followed by 24 byte bucket records of
+ * <pre>
+ *   int   bucket start, epoch seconds (unsigned)
+ *   int   sample count
+ *   short min, short max, short last, short reserved
+ *   long  sum
+ * </pre>
+ * in time order.  Buckets line up with local time, so daily buckets start at midnight.
+ * They are maintained as samples are logged: the open bucket is kept in memory and
+ * rewritten in place on flush, a closed bucket is never touched again.  Rollups
+ * missing for a segment are built from it when its writer opens; a sample older
+ * than the open bucket is only kept raw.
+ * @author alan
+ */
+class Rollup {
+	static final String FILE_EXT = ".tsr";
+	static final String ENABLED_PROPERTY = "traffic.store.rollups";
+	static final int HEADER_SIZE = 16;
+	static final int RECORD_SIZE = 24;
+	private static final int MAGIC = 0x54535231; // "TSR1"
+	private static final short VERSION = 1;
+
+	/**
+	 * Nothing finer than hourly: with a sample every 15 minutes a 5 minute bucket holds
+	 * at most one sample, so it would only repeat the raw segment
+	 */
+	enum Resolution {
+		HOURLY("1h", 3600),
+		DAILY("1d", 86400);
+
+		private final String label;
+		private final int seconds;
+
+		Resolution(String label, int seconds) {
+			this.label = label;
+			this.seconds = seconds;
+		}
+
+		String getLabel() {
+			return label;
+		}
+
+		int getSeconds() {
+			return seconds;
+		}
+
+		/** start of the local-time bucket holding {@code epochSeconds} */
+		long bucketStart(long epochSeconds) {
+			return bucketStart(epochSeconds, ZoneId.systemDefault());
+		}
+
+		/**
+		 * A day is found from the local date, as it's 23 or 25 hours long when the clocks
+		 * change; an hour is aligned with the offset in force at that instant
+		 */
+		long bucketStart(long epochSeconds, ZoneId zone) {
+			Instant instant = Instant.ofEpochSecond(epochSeconds);
+			if (this == DAILY) {
+				return instant.atZone(zone).toLocalDate().atStartOfDay(zone).toEpochSecond();
+			}
+			int offset = zone.getRules().getOffset(instant).getTotalSeconds();
+			return epochSeconds - Math.floorMod(epochSeconds + offset, (long) seconds);
+		}
+
+		/** start of the bucket after the one holding {@code epochSeconds} */
+		long nextBucketStart(long epochSeconds) {
+			return nextBucketStart(epochSeconds, ZoneId.systemDefault());
+		}
+
+		long nextBucketStart(long epochSeconds, ZoneId zone) {
+			if (this == DAILY) {
+				return Instant.ofEpochSecond(epochSeconds).atZone(zone).toLocalDate().plusDays(1).atStartOfDay(zone).toEpochSecond();
+			}
+			return bucketStart(epochSeconds, zone) + seconds;
+		}
+
+		Path pathFor(String key) {
+			return SegmentFormat.CSV.pathFor(key).resolveSibling(key + "." + label + FILE_EXT);
+		}
+
+		/**
+		 * @return the resolution labelled {@code label}, or null
+		 */
+		static Resolution fromLabel(String label) {
+			for (Resolution r : values()) {
+				if (r.label.equalsIgnoreCase(label)) return r;
+			}
+			return null;
+		}
+	}
+
+	private Rollup() { }
+
+	static boolean enabled() {
+		return Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"));
+	}
+
+	/**
+	 * Wrap a segment's writer so every appended sample also updates the segment's rollups
+	 */
+	static SegmentWriter rollingUp(String key, SegmentWriter segment) throws IOException {
+		Track[] tracks = new Track[Resolution.values().length];
+		try {
+			for (Resolution r : Resolution.values()) {
+				tracks[r.ordinal()] = new Track(r, key);
+			}
+		} catch (IOException e) {
+			for (Track t : tracks) {
+				if (t != null) t.channel.close();
+			}
+			throw e;
+		}
+		return new Writer(segment, tracks);
+	}
+
+	static Reader openReader(Path path) throws IOException {
+		return new Reader(path);
+	}
+
+	/**
+	 * One bucket being accumulated
+	 */
+	static class Bucket {
+		long start = -1;
+		int count;
+		int min;
+		int max;
+		int last;
+		long sum;
+
+		void reset(long start) {
+			this.start = start;
+			this.count = 0;
+			this.sum = 0;
+		}
+
+		void add(int speed) {
+			min = (count == 0) ? speed : Math.min(min, speed);
+			max = (count == 0) ? speed : Math.max(max, speed);
+			last = speed;
+			sum += speed;
+			++count;
+		}
+
+		int mean() {
+			return (int) Math.round((double) sum / count);
+		}
+	}
+
+	/**
+	 * Appends to a segment and its rollups; flushes the rollups after the segment
+	 */
+	private static class Writer implements SegmentWriter {
+		private final SegmentWriter segment;
+		private final Track[] tracks;
+
+		private Writer(SegmentWriter segment, Track[] tracks) {
+			this.segment = segment;
+			this.tracks = tracks;
+		}
+
+		@Override
+		public void append(long epochSeconds, int speed, String incident) throws IOException {
+			segment.append(epochSeconds, speed, incident);
+			for (Track t : tracks) {
+				t.add(epochSeconds, speed);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			segment.flush();
+			for (Track t : tracks) {
+				t.flush();
+			}
+		}
+
+		@Override
+		public void sync() throws IOException {
+			segment.sync();
+			for (Track t : tracks) {
+				t.flush();
+				t.channel.force(false);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				segment.close();
+			} finally {
+				for (Track t : tracks) {
+					try {
+						t.flush();
+					} finally {
+						t.channel.close();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * One resolution's file, with its open bucket
+	 */
+	private static class Track {
+		private final Resolution resolution;
+		private final FileChannel channel;
+		private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		private final Bucket open = new Bucket();
+		private long openRecord; // where the open bucket goes
+		private boolean dirty;
+
+		private Track(Resolution resolution, String key) throws IOException {
+			this.resolution = resolution;
+			Path path = resolution.pathFor(key);
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (channel.size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE).putInt(resolution.seconds);
+				header.rewind();
+				channel.write(header, 0);
+				backfill(key);
+			} else {
+				checkHeader(channel, path, resolution);
+				long records = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+				channel.truncate(HEADER_SIZE + records * RECORD_SIZE);
+				if (records > 0) {
+					openRecord = records - 1; // carry on with the last bucket
+					readRecord(openRecord, open);
+				}
+			}
+		}
+
+		/** roll up whatever the segment already holds */
+		private void backfill(String key) throws IOException {
+			HistoryStore.Series raw = new HistoryStore.Series();
+			HistoryStore.readSegment(key, 0, 0xFFFFFFFFL, raw);
+			for (int i = 0; i < raw.size(); ++i) {
+				add(raw.epochSeconds(i), raw.speed(i));
+			}
+		}
+
+		void add(long epochSeconds, int speed) throws IOException {
+			long start = resolution.bucketStart(epochSeconds);
+			if (start != open.start) {
+				if (open.start > start) {
+					return; // out of order, stays raw only
+				}
+				if (open.start >= 0) {
+					writeRecord(openRecord, open);
+					++openRecord;
+				}
+				open.reset(start);
+			}
+			open.add(speed);
+			dirty = true;
+		}
+
+		void flush() throws IOException {
+			if (dirty) {
+				writeRecord(openRecord, open);
+				dirty = false;
+			}
+		}
+
+		private void writeRecord(long index, Bucket b) throws IOException {
+			record.clear();
+			record.putInt((int) b.start).putInt(b.count)
+					.putShort((short) b.min).putShort((short) b.max).putShort((short) b.last).putShort((short) 0)
+					.putLong(b.sum).flip();
+			long position = HEADER_SIZE + index * RECORD_SIZE;
+			while (record.hasRemaining()) {
+				channel.write(record, position + record.position());
+			}
+		}
+
+		private void readRecord(long index, Bucket b) throws IOException {
+			record.clear();
+			long position = HEADER_SIZE + index * RECORD_SIZE;
+			while (record.hasRemaining()) {
+				if (channel.read(record, position + record.position()) < 0) {
+					throw new IOException("truncated rollup record");
+				}
+			}
+			record.flip();
+			b.start = Integer.toUnsignedLong(record.getInt());
+			b.count = record.getInt();
+			b.min = record.getShort();
+			b.max = record.getShort();
+			b.last = record.getShort();
+			record.getShort();
+			b.sum = record.getLong();
+		}
+	}
+
+	/**
+	 * Random access over a mapped rollup file
+	 */
+	static class Reader {
+		private final MappedByteBuffer records;
+		private final int count;
+
+		private Reader(Path path) throws IOException {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				checkHeader(channel, path, null);
+				this.count = (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+				this.records = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) count * RECORD_SIZE);
+			}
+		}
+
+		int count() {
+			return count;
+		}
+
+		long bucketStart(int i) {
+			return Integer.toUnsignedLong(records.getInt(i * RECORD_SIZE));
+		}
+
+		int sampleCount(int i) {
+			return records.getInt(i * RECORD_SIZE + 4);
+		}
+
+		int min(int i) {
+			return records.getShort(i * RECORD_SIZE + 8);
+		}
+
+		int max(int i) {
+			return records.getShort(i * RECORD_SIZE + 10);
+		}
+
+		int last(int i) {
+			return records.getShort(i * RECORD_SIZE + 12);
+		}
+
+		long sum(int i) {
+			return records.getLong(i * RECORD_SIZE + 16);
+		}
+	}
+
+	static boolean exists(Resolution resolution, String key) {
+		return Files.isRegularFile(resolution.pathFor(key));
+	}
+
+	private static void checkHeader(FileChannel channel, Path path, Resolution expected) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (header.hasRemaining()) {
+			if (channel.read(header, header.position()) < 0) {
+				throw new IOException("truncated rollup header: " + path);
+			}
+		}
+		header.flip();
+		if (header.getInt() != MAGIC || header.getShort() != VERSION || header.getShort() != RECORD_SIZE
+				|| (expected != null && header.getInt() != expected.seconds)) {
+			throw new IOException("not a version " + VERSION + " rollup: " + path);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package org.arbizu.traffic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+
+/**
+ * On-disk formats for the per-sensor monthly history segments.  Both share the
+ * {@code MM-yyyy-<id>} naming under {@link DataLogger#LOG_PATH}, only the extension differs.
+ * New samples go to the format chosen with {@value #STORE_PROPERTY} ({@code csv} by default);
+ * reads take whichever file exists, preferring binary.
+ * @author alan
+ */
+enum SegmentFormat {
+	CSV(DataLogger.LOG_FILE_EXT) {
+		@Override
+		SegmentWriter open(File file) throws IOException {
+			return CsvSegmentWriter.open(file);
+		}
+	},
+	BINARY(BinarySegment.FILE_EXT) {
+		@Override
+		SegmentWriter open(File file) throws IOException {
+			return BinarySegment.openWriter(file);
+		}
+	};
+
+	static final String STORE_PROPERTY = "traffic.store";
+	private final String extension;
+
+	SegmentFormat(String extension) {
+		this.extension = extension;
+	}
+
+	abstract SegmentWriter open(File file) throws IOException;
+
+	String getExtension() {
+		return extension;
+	}
+
+	Path pathFor(String key) {
+		return FileSystems.getDefault().getPath(DataLogger.LOG_PATH, key + extension);
+	}
+
+	static SegmentFormat configured() {
+		return "binary".equalsIgnoreCase(System.getProperty(STORE_PROPERTY)) ? BINARY : CSV;
+	}
+
+	/**
+	 * @return the format a segment was stored in, or null if there's no such segment
+	 */
+	static SegmentFormat locate(String key) {
+		if (BINARY.pathFor(key).toFile().isFile()) return BINARY;
+		if (CSV.pathFor(key).toFile().isFile()) return CSV;
+		return null;
+	}
+}
@@ -0,0 +1,21 @@
+package org.arbizu.traffic;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Appends one sensor's samples to one month's segment file
+ * @author alan
+ */
+interface SegmentWriter extends Closeable {
+	/**
+	 * @param incident incident text, or null when there is none
+	 */
+	void append(long epochSeconds, int speed, String incident) throws IOException;
+
+	/** push buffered samples to the file */
+	void flush() throws IOException;
+
+	/** flush, then force the file's content to the device */
+	void sync() throws IOException;
+}
@@ -0,0 +1,187 @@
+package org.arbizu.traffic;
+
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import org.apache.http.HttpStatus;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Parsed SensorNames table from the static region metadata, which changes far
+ * less often than we poll.  The table is kept under a content version (a hash of
+ * the SensorNames text), revalidated with a conditional GET at most every
+ * {@value #REVALIDATE_PROPERTY} minutes, and snapshotted to disk so a restart
+ * starts warm.  With no snapshot the bundled copy of the metadata is used until
+ * the first successful fetch.
+ *
+ * @author alan
+ */
+class SensorNameCache {
+    static final String SNAPSHOT_PROPERTY = "traffic.metadata.snapshot";
+    static final String REVALIDATE_PROPERTY = "traffic.metadata.revalidateMinutes";
+    private static final String DEFAULT_SNAPSHOT_FILE = "sensor-names.json";
+    private static final long DEFAULT_REVALIDATE_MINUTES = 360;
+    private final static String SENSOR_NAMES = "SensorNames";
+    private static final Splitter semicolonSplitter = Splitter.on(";");
+    private static final Splitter equalsSplitter = Splitter.on("=");
+    private static final String[] NO_NAMES = new String[0];
+
+    private final AutoflushingLogger logger;
+    private final File snapshotFile;
+    private final long revalidateMillis;
+    private final Gson gson = new Gson();
+    private volatile Names current;
+    private volatile long checkedAt;
+
+    /** what gets snapshotted to disk */
+    private static class Names {
+        String version;
+        String etag;
+        String lastModified;
+        String[] names;
+    }
+
+    private SensorNameCache(AutoflushingLogger logger, File snapshotFile, long revalidateMinutes) {
+        this.logger = logger;
+        this.snapshotFile = snapshotFile;
+        this.revalidateMillis = TimeUnit.MINUTES.toMillis(revalidateMinutes);
+    }
+
+    static SensorNameCache create(AutoflushingLogger logger) {
+        SensorNameCache cache = new SensorNameCache(logger,
+                new File(System.getProperty(SNAPSHOT_PROPERTY, DEFAULT_SNAPSHOT_FILE)),
+                Long.getLong(REVALIDATE_PROPERTY, DEFAULT_REVALIDATE_MINUTES));
+        cache.warm();
+        return cache;
+    }
+
+    /**
+     * A table read once from a saved copy of the metadata and never revalidated, for replays
+     * @throws IOException if there's no SensorNames table in it
+     */
+    static SensorNameCache fixed(BufferedReader metadata, AutoflushingLogger logger) throws IOException {
+        SensorNameCache cache = new SensorNameCache(logger, null, Long.MAX_VALUE);
+        cache.current = cache.parse(metadata, null, null);
+        if (cache.current == null) {
+            throw new IOException("no " + SENSOR_NAMES + " in the metadata");
+        }
+        return cache;
+    }
+
+    /**
+     * @return sensor names indexed by feed sensor index; do not modify
+     */
+    String[] names() {
+        if (System.currentTimeMillis() - checkedAt >= revalidateMillis) {
+            revalidate();
+        }
+        Names names = current;
+        return (names != null) ? names.names : NO_NAMES;
+    }
+
+    String version() {
+        Names names = current;
+        return (names != null) ? names.version : null;
+    }
+
+    private void warm() {
+        if (snapshotFile.isFile()) {
+            try (Reader r = Files.newBufferedReader(snapshotFile.toPath(), StandardCharsets.UTF_8)) {
+                current = gson.fromJson(r, Names.class);
+                logger.log(Level.INFO, "sensor names {0} loaded from {1}", new Object[] { current.version, snapshotFile.getPath() });
+                return;
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "unreadable sensor name snapshot {0}", new Object[] { e });
+            }
+        }
+        String bundled = DataSource.SourceType.METADATA.getFallback();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(
+                SensorNameCache.class.getResourceAsStream(bundled), StandardCharsets.UTF_8))) {
+            current = parse(r, null, null);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "unreadable bundled metadata {0}", new Object[] { e });
+        }
+    }
+
+    private synchronized void revalidate() {
+        if (System.currentTimeMillis() - checkedAt < revalidateMillis) {
+            return; // another thread just did it
+        }
+        Names known = current;
+        WebDataReader reader = WebDataReader.create(DataSource.SourceType.METADATA, logger).init();
+        if (known != null) {
+            reader.setValidators(known.etag, known.lastModified);
+        }
+        reader.read();
+        try {
+            if (reader.getStatusCode() == HttpStatus.SC_OK) {
+                reader.initReader();
+                Names fetched = parse(reader, reader.getEtag(), reader.getLastModified());
+                reader.close();
+                if (fetched != null) {
+                    boolean changed = known == null || !fetched.version.equals(known.version);
+                    current = fetched;
+                    persist(fetched);
+                    logger.log(Level.INFO, "sensor names {0}, changed={1}", new Object[] { fetched.version, changed });
+                }
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "sensor name revalidation failed, keeping {0}: {1}", new Object[] { version(), e });
+        }
+        // a 304 or a failure both leave the current table in place until the next interval
+        checkedAt = System.currentTimeMillis();
+    }
+
+    private Names parse(TrafficDataReader reader, String etag, String lastModified) throws Exception {
+        while (reader.hasNext()) {
+            Names names = parseLine(reader.nextLine(), etag, lastModified);
+            if (names != null) return names;
+        }
+        return null;
+    }
+
+    private Names parse(BufferedReader reader, String etag, String lastModified) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Names names = parseLine(line, etag, lastModified);
+            if (names != null) return names;
+        }
+        return null;
+    }
+
+    private Names parseLine(String line, String etag, String lastModified) {
+        for (String segment : semicolonSplitter.split(line)) {
+            List<String> segmentParts = equalsSplitter.splitToList(segment);
+            if (segmentParts.size() < 2) continue;
+            if (segmentParts.get(0).endsWith(SENSOR_NAMES)) {
+                String json = segmentParts.get(1);
+                Names names = new Names();
+                names.version = Hashing.sha256().hashString(json, StandardCharsets.UTF_8).toString().substring(0, 16);
+                names.etag = etag;
+                names.lastModified = lastModified;
+                names.names = gson.fromJson(json, String[].class);
+                return names;
+            }
+        }
+        return null;
+    }
+
+    private void persist(Names names) {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            try (Writer w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                gson.toJson(names, w);
+            }
+            Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "could not snapshot sensor names {0}", new Object[] { e });
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package org.arbizu.traffic;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Named corridors of feed sensors.  Every distinct sensor gets a slot, and the
+ * feed index to slot mapping is a plain int array so membership tests during a
+ * parse are a single array load, however many corridors are configured.
+ *
+ * Corridors are read from a file of {@code name=index,index,...} lines
+ * (see {@link #CONFIG_PROPERTY}); the built-in 92-East corridor is used when
+ * there is no such file.
+ *
+ * A slot is also the sensor's id in history: its segment file names, {@link LiveSeries}
+ * keys and {@code /r?sensors=}.  So ids must not move when the config does.  The
+ * 92-East sensors always have the ids 0-9 they've had from the start, and every other
+ * sensor is given the next free id the first time it's configured.  {@link #load}
+ * keeps that mapping in {@value #IDS_FILE} under {@value DataLogger#DIR_PROPERTY}, so
+ * reordering corridors, or adding sensors anywhere in them, leaves history where it is.
+ * Ids are never reused; a sensor dropped from the config leaves an unused slot.
+ *
+ * @author alan
+ */
+class SensorRegistry {
+    static final String CONFIG_PROPERTY = "traffic.corridors";
+    static final String IDS_FILE = "sensor-ids";
+    private static final String DEFAULT_CONFIG_FILE = "corridors.conf";
+    private static final String DEFAULT_CORRIDOR = "92-East";
+    private static final int[] DEFAULT_SENSORS = { 2645, 2646, 2647, 2648, 2649, 2650, 2651, 2652, 2653, 2654 };
+    private static final int NO_SLOT = -1;
+    private static final int NO_SENSOR = -1;
+    /** feed indices run to a few thousand; this keeps a typo from sizing the slot table */
+    static final int MAX_SENSOR_INDEX = 65535;
+    private static final Splitter EQUALS_SPLITTER = Splitter.on('=').trimResults().limit(2);
+
+    private final ImmutableMap<String, int[]> corridorSlots;
+    private final int[] sensorBySlot;
+    private final int[] slotBySensor;
+    /** every id handed out so far, by feed index, including sensors no longer configured */
+    private final ImmutableMap<Integer, Integer> ids;
+
+    /**
+     * @param knownIds ids already handed out, by feed index; configured sensors not in it get new ones
+     */
+    private SensorRegistry(Map<String, int[]> corridors, Map<Integer, Integer> knownIds) {
+        Map<Integer, Integer> ids = new LinkedHashMap<>(knownIds);
+        int nextId = ids.values().stream().mapToInt(Integer::intValue).max().orElse(-1) + 1;
+        ImmutableMap.Builder<String, int[]> builder = ImmutableMap.builder();
+        int maxSensor = -1;
+        int maxSlot = -1;
+        for (Map.Entry<String, int[]> corridor : corridors.entrySet()) {
+            int[] sensors = corridor.getValue();
+            int[] corridorSlots = new int[sensors.length];
+            for (int i = 0; i < sensors.length; ++i) {
+                Integer slot = ids.get(sensors[i]);
+                if (slot == null) {
+                    slot = nextId++;
+                    ids.put(sensors[i], slot);
+                }
+                corridorSlots[i] = slot;
+                maxSensor = Math.max(maxSensor, sensors[i]);
+                maxSlot = Math.max(maxSlot, slot);
+            }
+            builder.put(corridor.getKey(), corridorSlots);
+        }
+        this.corridorSlots = builder.build();
+        this.ids = ImmutableMap.copyOf(ids);
+        this.sensorBySlot = new int[maxSlot + 1];
+        this.slotBySensor = new int[maxSensor + 1];
+        Arrays.fill(sensorBySlot, NO_SENSOR);
+        Arrays.fill(slotBySensor, NO_SLOT);
+        for (int[] sensors : corridors.values()) {
+            for (int sensor : sensors) {
+                int slot = ids.get(sensor);
+                sensorBySlot[slot] = sensor;
+                slotBySensor[sensor] = slot;
+            }
+        }
+    }
+
+    /**
+     * Load the corridors named by the {@value #CONFIG_PROPERTY} system property,
+     * or {@value #DEFAULT_CONFIG_FILE} in the working directory, with the ids in
+     * {@value #IDS_FILE}, which is extended when sensors are new.
+     * @throws IllegalStateException if the ids file can't be read, rather than risk
+     * logging sensors' samples under other sensors' ids
+     */
+    static SensorRegistry load(AutoflushingLogger logger) {
+        File idsFile = new File(DataLogger.LOG_PATH, IDS_FILE);
+        Map<Integer, Integer> knownIds;
+        try {
+            knownIds = idsFile.isFile() ? parseIds(Files.readLines(idsFile, StandardCharsets.UTF_8)) : legacyIds();
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalStateException("can't read sensor ids from " + idsFile + ", history is filed by them: " + e, e);
+        }
+        SensorRegistry registry = null;
+        File config = new File(System.getProperty(CONFIG_PROPERTY, DEFAULT_CONFIG_FILE));
+        if (config.isFile()) {
+            try {
+                registry = parse(Files.readLines(config, StandardCharsets.UTF_8), knownIds);
+                logger.log(Level.INFO, "loaded {0} corridors, {1} sensors from {2}",
+                        new Object[] { registry.corridorNames().size(), registry.corridorSensors(), config.getPath() });
+            } catch (IOException | IllegalArgumentException e) {
+                logger.log(Level.SEVERE, "bad corridor config {0}, using defaults", new Object[] { e });
+            }
+        }
+        if (registry == null) {
+            registry = defaults(knownIds);
+        }
+        if (!idsFile.isFile() || registry.ids.size() > knownIds.size()) {
+            try {
+                registry.writeIds(idsFile);
+                logger.log(Level.INFO, "{0} sensor ids in {1}, {2} new",
+                        new Object[] { registry.ids.size(), idsFile.getPath(), registry.ids.size() - knownIds.size() });
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "couldn''t save sensor ids to {0}: {1}", new Object[] { idsFile.getPath(), e });
+            }
+        }
+        return registry;
+    }
+
+    static SensorRegistry defaults() {
+        return defaults(legacyIds());
+    }
+
+    private static SensorRegistry defaults(Map<Integer, Integer> knownIds) {
+        Map<String, int[]> corridors = new LinkedHashMap<>();
+        corridors.put(DEFAULT_CORRIDOR, DEFAULT_SENSORS);
+        return new SensorRegistry(corridors, knownIds);
+    }
+
+    /**
+     * Parse a config on its own, ids starting from the 92-East sensors' 0-9
+     */
+    static SensorRegistry parse(List<String> lines) {
+        return parse(lines, legacyIds());
+    }
+
+    private static SensorRegistry parse(List<String> lines, Map<Integer, Integer> knownIds) {
+        Splitter commaSplitter = Splitter.on(',').trimResults().omitEmptyStrings();
+        Map<String, int[]> corridors = new LinkedHashMap<>();
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+            List<String> parts = EQUALS_SPLITTER.splitToList(trimmed);
+            if (parts.size() < 2 || parts.get(0).isEmpty()) {
+                throw new IllegalArgumentException("expected name=index,... but got: " + line);
+            }
+            int[] sensors = commaSplitter.splitToList(parts.get(1)).stream().mapToInt(Integer::parseInt).toArray();
+            for (int sensor : sensors) {
+                checkSensor(sensor, line);
+            }
+            corridors.put(parts.get(0), sensors);
+        }
+        if (corridors.isEmpty()) {
+            throw new IllegalArgumentException("no corridors defined");
+        }
+        return new SensorRegistry(corridors, knownIds);
+    }
+
+    private static void checkSensor(int sensor, String line) {
+        if (sensor < 0) throw new IllegalArgumentException("negative sensor index in: " + line);
+        if (sensor > MAX_SENSOR_INDEX) {
+            throw new IllegalArgumentException("sensor index over " + MAX_SENSOR_INDEX + " in: " + line);
+        }
+    }
+
+    private static Map<Integer, Integer> legacyIds() {
+        Map<Integer, Integer> ids = new LinkedHashMap<>();
+        for (int i = 0; i < DEFAULT_SENSORS.length; ++i) {
+            ids.put(DEFAULT_SENSORS[i], i);
+        }
+        return ids;
+    }
+
+    /**
+     * @param lines {@code index=id} lines, as written by {@link #writeIds}
+     */
+    static Map<Integer, Integer> parseIds(List<String> lines) {
+        Map<Integer, Integer> ids = new LinkedHashMap<>();
+        Set<Integer> used = new HashSet<>();
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+            List<String> parts = EQUALS_SPLITTER.splitToList(trimmed);
+            if (parts.size() < 2) {
+                throw new IllegalArgumentException("expected index=id but got: " + line);
+            }
+            int sensor = Integer.parseInt(parts.get(0));
+            int id = Integer.parseInt(parts.get(1));
+            checkSensor(sensor, line);
+            if (id < 0 || id > MAX_SENSOR_INDEX || !used.add(id) || ids.put(sensor, id) != null) {
+                throw new IllegalArgumentException("bad or repeated id in: " + line);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Replace the ids file, through a temporary file so a crash can't leave half of it
+     */
+    private void writeIds(File idsFile) throws IOException {
+        StringBuilder out = new StringBuilder("# feed sensor index=history id; ids are never reused, don't change them\n");
+        ids.forEach((sensor, id) -> out.append(sensor).append('=').append(id).append('\n'));
+        java.nio.file.Files.createDirectories(idsFile.toPath().toAbsolutePath().getParent());
+        Path tmp = idsFile.toPath().resolveSibling(IDS_FILE + ".tmp");
+        java.nio.file.Files.write(tmp, out.toString().getBytes(StandardCharsets.UTF_8));
+        java.nio.file.Files.move(tmp, idsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** @return the slot for a feed sensor index, or -1 if no corridor tracks it */
+    int slotOf(int sensor) {
+        return (sensor >= 0 && sensor < slotBySensor.length) ? slotBySensor[sensor] : NO_SLOT;
+    }
+
+    /** @return the feed sensor index in a slot, or -1 for an id no configured sensor has */
+    int sensorAt(int slot) {
+        return sensorBySlot[slot];
+    }
+
+    /** @return slots, one more than the highest id in use; unused ids leave gaps */
+    int sensorCount() {
+        return sensorBySlot.length;
+    }
+
+    /** @return distinct sensors configured */
+    private long corridorSensors() {
+        return Arrays.stream(sensorBySlot).filter(sensor -> sensor != NO_SENSOR).count();
+    }
+
+    Set<String> corridorNames() {
+        return corridorSlots.keySet();
+    }
+
+    /** the corridor served when a request doesn't name one */
+    String defaultCorridor() {
+        return corridorSlots.keySet().iterator().next();
+    }
+
+    /** slots of a corridor's sensors, in configured order; callers must not modify the array */
+    int[] slotsOf(String corridor) {
+        return corridorSlots.get(corridor);
+    }
+}
@@ -0,0 +1,250 @@
+package org.arbizu.traffic;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sparse side index for a CSV segment: the time and byte offset of every
+ * {@value #INTERVAL_PROPERTY}th record (96 by default, a day of samples), so a range
+ * read can start near its first record instead of scanning the month from the top.
+ * Kept beside the segment as {@code MM-yyyy-<id>.csv.idx}:
+ * <pre>
+ *   int  magic, int interval, long indexed bytes, long indexed records   (header)
+ *   long epoch seconds, long byte offset                                  (per entry)
+ * </pre>
+ * The header says how much of the segment the entries cover.  An index that doesn't
+ * cover its whole segment when a writer opens it, or at startup, is rebuilt with a scan.
+ * Readers only need the entries, which stay valid as the segment grows.
+ * @author alan
+ */
+class SparseTimeIndex {
+	static final String FILE_EXT = ".idx";
+	static final String INTERVAL_PROPERTY = "traffic.store.indexInterval";
+	private static final int MAGIC = 0x54534931; // "TSI1"
+	private static final int HEADER_SIZE = 24;
+	private static final int ENTRY_SIZE = 16;
+	private static final int INTERVAL = Math.max(1, Integer.getInteger(INTERVAL_PROPERTY, 96));
+
+	private SparseTimeIndex() { }
+
+	static Path indexPath(Path segment) {
+		return segment.resolveSibling(segment.getFileName() + FILE_EXT);
+	}
+
+	/**
+	 * Open a segment's index for appending, rebuilding it first if it doesn't cover
+	 * exactly {@code segmentSize} bytes
+	 */
+	static Writer openWriter(Path segment, long segmentSize) throws IOException {
+		Path path = indexPath(segment);
+		long[] header = readHeader(path);
+		if (header == null || header[0] != segmentSize) {
+			header = rebuild(segment);
+		}
+		return new Writer(path, header[0], header[1]);
+	}
+
+	/**
+	 * Rebuild any missing or stale index for the CSV segments in {@code dir}
+	 * @return the number of indexes rebuilt
+	 */
+	static int rebuildStale(Path dir) throws IOException {
+		if (!Files.isDirectory(dir)) {
+			return 0;
+		}
+		int rebuilt = 0;
+		try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, "*" + DataLogger.LOG_FILE_EXT)) {
+			for (Path segment : segments) {
+				long[] header = readHeader(indexPath(segment));
+				if (header == null || header[0] != Files.size(segment)) {
+					rebuild(segment);
+					++rebuilt;
+				}
+			}
+		}
+		return rebuilt;
+	}
+
+	/**
+	 * @return the offset of the last indexed record before {@code from}, or of the first
+	 * record if there's none; -1 when there's no usable index
+	 */
+	static long seek(Path segment, long from, long segmentSize) throws IOException {
+		Path path = indexPath(segment);
+		if (!Files.isRegularFile(path)) {
+			return -1;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				return -1;
+			}
+			MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (index.getInt(0) != MAGIC || index.getLong(8) > segmentSize) {
+				return -1; // not ours, or the segment was replaced by a shorter one
+			}
+			int lo = 0;
+			int hi = (int) ((size - HEADER_SIZE) / ENTRY_SIZE);
+			while (hi > 0 && offsetAt(index, hi - 1) >= segmentSize) {
+				--hi; // written ahead of the mapped segment
+			}
+			if (hi == 0) {
+				return -1;
+			}
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (timeAt(index, mid) < from) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return offsetAt(index, Math.max(0, lo - 1));
+		}
+	}
+
+	private static long timeAt(ByteBuffer index, int entry) {
+		return index.getLong(HEADER_SIZE + entry * ENTRY_SIZE);
+	}
+
+	private static long offsetAt(ByteBuffer index, int entry) {
+		return index.getLong(HEADER_SIZE + entry * ENTRY_SIZE + 8);
+	}
+
+	/**
+	 * @return {indexed bytes, indexed records}, or null if the index is missing or inconsistent
+	 */
+	private static long[] readHeader(Path path) throws IOException {
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position()) < 0) {
+					return null;
+				}
+			}
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != INTERVAL) {
+				return null;
+			}
+			long bytes = header.getLong();
+			long records = header.getLong();
+			long entries = (records + INTERVAL - 1) / INTERVAL;
+			return (channel.size() == HEADER_SIZE + entries * ENTRY_SIZE) ? new long[] { bytes, records } : null;
+		}
+	}
+
+	/**
+	 * Scan the segment and write a complete index for it, replacing any existing one
+	 * @return {indexed bytes, indexed records}
+	 */
+	private static long[] rebuild(Path segment) throws IOException {
+		Path path = indexPath(segment);
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		long records = 0;
+		long end = 0;
+		try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ);
+			 FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			MappedByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+			ByteBuffer entries = ByteBuffer.allocate(ENTRY_SIZE * 256);
+			out.position(HEADER_SIZE);
+			int lineStart = -1; // the first line is the header
+			for (int i = 0; i < data.limit(); ++i) {
+				if (data.get(i) != '\n') continue;
+				if (lineStart >= 0 && i - lineStart >= HistoryStore.TIME_LENGTH) {
+					if (records % INTERVAL == 0) {
+						if (!entries.hasRemaining()) {
+							write(out, entries);
+						}
+						entries.putLong(HistoryStore.parseTime(data, lineStart)).putLong(lineStart);
+					}
+					++records;
+				}
+				lineStart = i + 1;
+				end = lineStart; // a torn last line isn't covered
+			}
+			write(out, entries);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(INTERVAL).putLong(end).putLong(records).flip();
+			out.write(header, 0);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return new long[] { end, records };
+	}
+
+	private static void write(FileChannel out, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Adds entries as records are appended to the segment.  Entries are written on
+	 * {@link #flush()}, which must follow the segment's own flush.
+	 */
+	static class Writer implements Closeable {
+		private final FileChannel channel;
+		private final ByteBuffer entries = ByteBuffer.allocate(ENTRY_SIZE * 64);
+		private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		private long indexedBytes;
+		private long records;
+		private boolean dirty;
+
+		private Writer(Path path, long indexedBytes, long records) throws IOException {
+			this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+			this.channel.position(channel.size());
+			this.indexedBytes = indexedBytes;
+			this.records = records;
+		}
+
+		/**
+		 * @param offset where the record's line starts in the segment
+		 * @param length the line's length in bytes, separator included
+		 */
+		void appended(long epochSeconds, long offset, int length) throws IOException {
+			if (records % INTERVAL == 0) {
+				if (!entries.hasRemaining()) {
+					write(channel, entries);
+				}
+				entries.putLong(epochSeconds).putLong(offset);
+			}
+			++records;
+			indexedBytes = offset + length;
+			dirty = true;
+		}
+
+		void flush() throws IOException {
+			if (!dirty) {
+				return;
+			}
+			write(channel, entries);
+			header.clear();
+			header.putInt(MAGIC).putInt(INTERVAL).putLong(indexedBytes).putLong(records).flip();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			dirty = false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+}
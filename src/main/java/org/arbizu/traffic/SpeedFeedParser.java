@@ -0,0 +1,93 @@
+package org.arbizu.traffic;
+
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Single pass extractor for the NoCal speed feed.  Only the sensors tracked by
+ * the {@link SensorRegistry} and the incidents that touch them are materialized,
+ * every other element of the feed is skipped at the token level.
+ *
+ * @author alan
+ */
+class SpeedFeedParser {
+    private final static String SPEEDS = "speeds";
+    private final static String INCIDENTS = "incidents";
+    private final SensorRegistry registry;
+
+    private SpeedFeedParser(SensorRegistry registry) {
+        this.registry = registry;
+    }
+
+    static SpeedFeedParser create(SensorRegistry registry) {
+        return new SpeedFeedParser(registry);
+    }
+
+    /**
+     * Parse one feed document into a datum per registry slot.  Slots whose sensor
+     * is beyond the end of the feed's speed array are left null.
+     */
+    TrafficDatum[] parse(Reader in) throws IOException {
+        TrafficDatum[] data = new TrafficDatum[registry.sensorCount()];
+        JsonReader reader = new JsonReader(in);
+        reader.setStrictness(Strictness.LENIENT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (SPEEDS.equals(name)) {
+                readSpeeds(reader, data);
+            } else if (INCIDENTS.equals(name)) {
+                readIncidents(reader, data);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return data;
+    }
+
+    private void readSpeeds(JsonReader reader, TrafficDatum[] data) throws IOException {
+        reader.beginArray();
+        int index = 0;
+        while (reader.hasNext()) {
+            int slot = registry.slotOf(index);
+            if (slot >= 0) {
+                reader.beginArray();
+                TrafficDatum datum = new TrafficDatum();
+                datum.setSpeed(reader.nextInt());
+                data[slot] = datum;
+                skipRemaining(reader);
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+            ++index;
+        }
+        reader.endArray();
+    }
+
+    private void readIncidents(JsonReader reader, TrafficDatum[] data) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginArray();
+            int slot = registry.slotOf(reader.nextInt());
+            if (slot >= 0 && data[slot] != null) {
+                reader.skipValue();
+                String incident = reader.nextString() + reader.nextString() + reader.nextString();
+                data[slot].setIncident(incident);
+            }
+            skipRemaining(reader);
+            reader.endArray();
+        }
+        reader.endArray();
+    }
+
+    private static void skipRemaining(JsonReader reader) throws IOException {
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+    }
+}
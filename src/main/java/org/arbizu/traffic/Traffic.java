@@ -2,7 +2,10 @@ package org.arbizu.traffic;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.nio.file.Paths;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.sun.net.httpserver.HttpServer;
@@ -14,34 +17,63 @@ import com.sun.net.httpserver.HttpServer;
  */
 class Traffic {
     
-    private static final int HTTP_PORT = 8888;
-    private static final int MAX_QUEUE_SIZE = 32;
+    private static final int HTTP_PORT = Integer.getInteger("traffic.server.port", 8888);
+    private static final int MAX_QUEUE_SIZE = Integer.getInteger("traffic.server.backlog", 32);
     private static final String LOG_FILE_NAME = "trafficApp.log";
     private final AutoflushingLogger logger;
+    private final SensorRegistry registry;
+    private final SensorNameCache nameCache;
     
     private Traffic() {
         Logger l = Logger.getLogger(this.getClass().getName());
         this.logger = new AutoflushingLogger(l, this.getClass().getName(), LOG_FILE_NAME);
+        this.registry = SensorRegistry.load(logger);
+        this.nameCache = SensorNameCache.create(logger);
     }
     
-    ByteArrayOutputStream process() {
-        DataSource source = new DataSource(logger);
+    AutoflushingLogger getLogger() {
+        return logger;
+    }
+    
+    LinkedHashMap<String,byte[]> process() throws Exception {
+        DataSource source = new DataSource(logger, registry, nameCache);
         return source.collect();
     }
     
+    private void rebuildStaleIndexes() {
+        try {
+            int rebuilt = SparseTimeIndex.rebuildStale(Paths.get(DataLogger.LOG_PATH));
+            logger.log(Level.INFO, "rebuilt {0} history indexes", new Object[] { rebuilt });
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "history index rebuild failed: {0}", new Object[] { e.getMessage() });
+        }
+    }
+    
+    /**
+     * Settings for the JDK's HttpServer, which reads them once, when the first server is created.
+     * Without nodelay a body written after its headers, or in pieces as JSONP is, waits
+     * on the client's delayed ACK, about 40ms.
+     */
+    static void configureHttpServer() {
+        System.setProperty("sun.net.httpserver.clockTick", "1000");
+        System.setProperty("sun.net.httpserver.maxReqTime", "5");
+        System.setProperty("sun.net.httpserver.maxRspTime", "5");
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+    
     public static void main(String... args) {
         Traffic traffic = new Traffic();
+        traffic.rebuildStaleIndexes(); // before the first sample opens a segment
         Checker trafficChecker = Checker.create(traffic);
         TrafficLoggerTask.createAndSchedule(15, TimeUnit.MINUTES, trafficChecker);
         HttpServer server;
         try {
-            System.setProperty("sun.net.httpserver.clockTick", "1000");
-            System.setProperty("sun.net.httpserver.maxReqTime", "5");
-            System.setProperty("sun.net.httpserver.maxRspTime", "5");
+            configureHttpServer();
             server = HttpServer.create(new InetSocketAddress(HTTP_PORT), MAX_QUEUE_SIZE);
-            server.createContext("/t", TrafficRequestHandler.create(trafficChecker));
-            server.createContext("/r", TrafficHistoryFileRequestHandler.create());
-            server.setExecutor(null); // creates a default executor
+            server.createContext("/t", TrafficRequestHandler.create(trafficChecker)).getFilters().add(Metrics.filter("t"));
+            server.createContext("/r", TrafficHistoryFileRequestHandler.create()).getFilters().add(Metrics.filter("r"));
+            server.createContext("/metrics", Metrics.handler()).getFilters().add(Metrics.filter("metrics"));
+            server.setExecutor(RequestExecutors.create(traffic.logger)); // null keeps the default dispatcher thread
             server.start();
         } catch (IOException e) {
             e.printStackTrace();
@@ -1,5 +1,8 @@
 package org.arbizu.traffic;
 
+import java.io.IOException;
+import java.io.Reader;
+
 /**
  * Interface for collecting traffic data
  * @author alan
@@ -15,4 +18,18 @@ interface TrafficDataReader {
     String nextLine();
     void close() throws Exception;
     void store(String value) throws Exception;
+    
+    /**
+     * Hand the source's content straight to a handler, without the line-by-line
+     * buffered copy that {@link #read()} makes.  No {@link #init()} is needed.
+     * @throws IOException if the source has no content to give
+     */
+    <T> T stream(ContentHandler<T> handler) throws Exception;
+    
+    /**
+     * Consumes a source's content as it arrives
+     */
+    interface ContentHandler<T> {
+        T handle(Reader content) throws IOException;
+    }
 }
@@ -21,7 +21,7 @@ class TrafficDatum {
         return this.speed;
     }
     
-    private String getIncident() {
+    String getIncident() {
         return this.incident;
     }
     
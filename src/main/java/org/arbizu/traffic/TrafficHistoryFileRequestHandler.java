@@ -1,19 +1,34 @@
 package org.arbizu.traffic;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.FileSystems;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.gson.JsonArray;
+import com.google.gson.stream.JsonWriter;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -21,20 +36,68 @@ import com.sun.net.httpserver.HttpHandler;
 /**
  * HTTP requests for traffic file data, with caching.
  * Responds with JSON for a JSONP request.
+ * Whole months are cached as encoded payloads within {@value #CACHE_BYTES_PROPERTY} bytes.
+ * Responses are gzipped for clients that accept it.  Month and range responses carry an ETag
+ * and Last-Modified for conditional requests, and a month may be reused for a day once it's over.
+ *
+ * Besides the positional {@code MM-yyyy-<id>&callback=fn} form, a named-parameter
+ * range query is served when {@code sensors=} is present:
+ * <pre>
+ *   /r?sensors=3,4&amp;from=-6h&amp;to=1593000000&amp;format=json&amp;callback=fn
+ * </pre>
+ * {@code from}/{@code to} take epoch seconds, {@code yyyy-MM-dd:HH:mm:ss} or an offset
+ * such as {@code -6h}; {@code to} defaults to now and {@code from} to a day before it.
+ * {@code format} is {@code json} (default, a sensor to [["time",...],["speed",...]] object)
+ * or {@code csv}.  {@code resolution} is {@code raw}, {@code 1h}, {@code 1d} or
+ * {@code auto} (default), which picks rollups for long windows; rolled up speeds are bucket
+ * means, followed by "min", "max", "last" and "count" arrays.  The resolution used is
+ * returned in {@code X-Resolution}.  Large ranges, or any with {@code stream=true}, are
+ * streamed with chunked encoding rather than built in memory first.
  * @author alan
  *
  */
 class TrafficHistoryFileRequestHandler implements HttpHandler {
 	private static final int DEFAULT_BUFFER_SIZE = 1024 * 4;
-	private static final LoadingCache<String, String> FILE_CACHE = CacheBuilder.newBuilder()
-			.maximumSize(20)
-			.expireAfterWrite(1, TimeUnit.DAYS)
-			.build(new CacheLoader<String, String>() {
-				@Override
-				public String load(String key) throws Exception {
-					return TrafficHistoryFileRequestHandler.loadFromFilesystem(key);
-				}
-			});
+	private static final long DEFAULT_WINDOW_SECONDS = TimeUnit.DAYS.toSeconds(1);
+	private static final Splitter AND_SPLITTER = Splitter.on('&').omitEmptyStrings();
+	private static final Splitter EQ_SPLITTER = Splitter.on('=').limit(2);
+	private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+	static final String CACHE_BYTES_PROPERTY = "traffic.history.cacheBytes";
+	private static final long SAMPLE_SECONDS = TimeUnit.MINUTES.toSeconds(15);
+	private static final long CLOSED_MONTH_MAX_AGE = TimeUnit.DAYS.toSeconds(1);
+	private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("MM-yyyy");
+	static final String STREAM_POINTS_PROPERTY = "traffic.history.streamPoints";
+	private static final long STREAM_POINTS = Long.getLong(STREAM_POINTS_PROPERTY, 20000);
+	private static final byte[] JSONP_END = ");".getBytes(StandardCharsets.UTF_8);
+	/**
+	 * Whole-month payloads, ready to send in either encoding, weighed by size.  Nothing expires: a
+	 * segment's entry is dropped when {@link DataLogger} writes more of it, so closed
+	 * months stay until they're pushed out by newer requests.
+	 */
+	private static final Cache<String, ResponseBody> FILE_CACHE = CacheBuilder.newBuilder()
+			.maximumWeight(Long.getLong(CACHE_BYTES_PROPERTY, 32L * 1024 * 1024))
+			.weigher((String key, ResponseBody payload) -> key.length() + payload.weight())
+			.recordStats()
+			.build();
+	/** bumped on every flush, so a load that raced with one isn't cached */
+	private static final AtomicLong FLUSHES = new AtomicLong();
+	/** entries are put rather than loaded, so the cache's own load time stays at zero; this is it */
+	private static final Metrics.Histogram LOAD_SECONDS = Metrics.histogram("traffic_history_load_seconds",
+			"Reading and encoding a closed month on a history cache miss");
+
+	static {
+		Metrics.cache("history", FILE_CACHE);
+		DataLogger.addListener(new DataLogger.Listener() {
+			@Override
+			public void appended(String key, long epochSeconds, int speed) { }
+
+			@Override
+			public void flushed(String key) {
+				FLUSHES.incrementAndGet();
+				FILE_CACHE.invalidate(key);
+			}
+		});
+	}
 
 	static HttpHandler create() {
 		return new TrafficHistoryFileRequestHandler();
@@ -42,22 +105,261 @@ class TrafficHistoryFileRequestHandler implements HttpHandler {
 
 	@Override
 	public void handle(HttpExchange t) throws IOException {
+		Map<String, String> params = namedParams(t.getRequestURI().getQuery());
+		if (params.containsKey("sensors")) {
+			handleRange(t, params);
+			return;
+		}
 		Headers responseHeaders = t.getResponseHeaders();
 		responseHeaders.set("Content-Type", "text/javascript");
 		QueryContents qc = parseQuery(t.getRequestURI().getQuery());
-		String fileData = getFileData(qc.getDataKey());
-		OutputStream os = t.getResponseBody();
+		ResponseBody fileData = getFileData(qc.getDataKey());
 		if (null != fileData) {
-			String callback = qc.getCallback();
-            byte[] resBytes = (callback + "(" + fileData + ");").getBytes();
-			t.sendResponseHeaders(200, resBytes.length);
-			copy(new ByteArrayInputStream(resBytes), os);
+			responseHeaders.set("Cache-Control", "max-age=" + maxAgeSeconds(qc.getDataKey()));
+			fileData.send(t, (qc.getCallback() + "(").getBytes(StandardCharsets.UTF_8), JSONP_END);
 		} else {
+			OutputStream os = t.getResponseBody();
 			String err = "Error loading file";
+			responseHeaders.set("Cache-Control", "no-store");
 			t.sendResponseHeaders(503, err.length());
 			os.write(err.getBytes());
+			os.close();
 		}
-		os.close();
+	}
+
+	/**
+	 * The open month may change with every sample, a closed month shouldn't change again
+	 */
+	private static long maxAgeSeconds(String key) {
+		LiveSeries.Column live = LiveSeries.get(key);
+		long now = System.currentTimeMillis() / 1000;
+		if (live != null) {
+			return Math.max(0, SAMPLE_SECONDS - (now - live.lastEpochSeconds()));
+		}
+		try {
+			YearMonth month = YearMonth.parse(key.substring(0, 7), MONTH_FORMAT);
+			return month.isBefore(YearMonth.now()) ? CLOSED_MONTH_MAX_AGE : 0;
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+
+	private static Map<String, String> namedParams(String query) {
+		Map<String, String> params = new HashMap<>();
+		if (query == null) return params;
+		for (String pair : AND_SPLITTER.split(query)) {
+			List<String> keyAndValue = EQ_SPLITTER.splitToList(pair);
+			if (keyAndValue.size() == 2) {
+				params.put(keyAndValue.get(0).toLowerCase(), keyAndValue.get(1));
+			}
+		}
+		return params;
+	}
+
+	private void handleRange(HttpExchange t, Map<String, String> params) throws IOException {
+		long from;
+		long to;
+		Rollup.Resolution resolution;
+		List<Integer> sensors = new ArrayList<>();
+		try {
+			long now = System.currentTimeMillis() / 1000;
+			to = params.containsKey("to") ? HistoryStore.parseQueryTime(params.get("to"), now) : now;
+			from = params.containsKey("from") ? HistoryStore.parseQueryTime(params.get("from"), now) : to - DEFAULT_WINDOW_SECONDS;
+			if (from > to) {
+				throw new IllegalArgumentException("from is after to");
+			}
+			resolution = resolution(params.get("resolution"), from, to);
+			for (String sensor : COMMA_SPLITTER.split(params.get("sensors"))) {
+				int id = Integer.parseInt(sensor);
+				if (id < 0) throw new IllegalArgumentException("bad sensor: " + sensor);
+				sensors.add(id);
+			}
+		} catch (IllegalArgumentException e) {
+			byte[] body = ("Bad range query: " + e.getMessage()).getBytes(StandardCharsets.UTF_8);
+			t.getResponseHeaders().set("Content-Type", "text/plain");
+			t.sendResponseHeaders(400, body.length);
+			try (OutputStream os = t.getResponseBody()) {
+				os.write(body);
+			}
+			return;
+		}
+		// samples logged while this is read would land in some sensors and not others
+		long lastLogged = LiveSeries.lastLogged();
+		to = Math.min(to, lastLogged);
+		boolean csv = "csv".equalsIgnoreCase(params.get("format"));
+		String callback = csv ? null : params.get("callback");
+		Headers responseHeaders = t.getResponseHeaders();
+		responseHeaders.set("Content-Type", csv ? "text/csv" : (callback != null) ? "text/javascript" : "application/json");
+		responseHeaders.set("X-Resolution", (resolution == null) ? "raw" : resolution.getLabel());
+		long changed = rangeLastChanged(lastLogged, to, resolution);
+		if (ResponseBody.sendIfNotModified(t, rangeTag(t, sensors, from, to, resolution, changed), changed * 1000)) {
+			return;
+		}
+		if (streaming(params.get("stream"), sensors.size(), from, to, resolution)) {
+			streamRange(t, sensors, from, to, resolution, csv, callback);
+			return;
+		}
+		Map<Integer, HistoryStore.Series> result = new LinkedHashMap<>();
+		for (int id : sensors) {
+			result.put(id, HistoryStore.read(id, from, to, resolution));
+		}
+		byte[] body = csv ? rangeCsv(result) : rangeJson(result);
+		if (callback != null) {
+			body = jsonp(callback, body);
+		}
+		ResponseBody.send(t, body);
+	}
+
+	/**
+	 * The newest sample time that can be in a range's response.  Samples are logged in time
+	 * order, so that's the last one logged, or once it's past the window, the window's end:
+	 * {@code to} for raw samples and the end of its bucket for a rollup, whose last bucket
+	 * keeps changing until it's closed.
+	 */
+	private static long rangeLastChanged(long lastLogged, long to, Rollup.Resolution resolution) {
+		long end = (resolution == null) ? to : resolution.nextBucketStart(to) - 1;
+		return Math.min(lastLogged, end);
+	}
+
+	/**
+	 * A range's {@code ETag}, made from the query and the time it last changed rather than
+	 * the body, so a match is answered before anything is read.  The body is only gzipped
+	 * for clients that take it, so that's part of the tag as well.
+	 */
+	private static String rangeTag(HttpExchange t, List<Integer> sensors, long from, long to,
+								   Rollup.Resolution resolution, long lastChanged) {
+		Hasher hasher = Hashing.murmur3_128().newHasher()
+				.putString(Strings.nullToEmpty(t.getRequestURI().getRawQuery()), StandardCharsets.UTF_8)
+				.putLong(from).putLong(to).putLong(lastChanged)
+				.putInt((resolution == null) ? 0 : resolution.getSeconds());
+		sensors.forEach(hasher::putInt);
+		return "\"r-" + hasher.hash().toString().substring(0, 16) + (ResponseBody.acceptsGzip(t) ? "-gz\"" : "\"");
+	}
+
+	/**
+	 * Stream when asked to with {@code stream=true}, or when the response would be
+	 * more than {@value #STREAM_POINTS_PROPERTY} points and {@code stream=false} isn't given
+	 */
+	private static boolean streaming(String requested, int sensors, long from, long to, Rollup.Resolution resolution) {
+		if (requested != null) {
+			return Boolean.parseBoolean(requested);
+		}
+		long step = (resolution == null) ? SAMPLE_SECONDS : resolution.getSeconds();
+		return sensors * ((to - from) / step) > STREAM_POINTS;
+	}
+
+	/**
+	 * Send a range with chunked encoding.  CSV rows are written as they're read; JSON is
+	 * column by column, so each sensor is read once into one reused {@link HistoryStore.Series}
+	 * and written from that, holding one sensor's primitive columns rather than the whole
+	 * response.  Once the headers are out an error can't change the status, so the stream is
+	 * left unfinished and the connection dropped, and the client sees a broken response
+	 * rather than a short one.
+	 */
+	private static void streamRange(HttpExchange t, List<Integer> sensors, long from, long to,
+									Rollup.Resolution resolution, boolean csv, String callback) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(ResponseBody.stream(t), StandardCharsets.UTF_8), DEFAULT_BUFFER_SIZE);
+		if (csv) {
+			out.write((resolution != null) ? "sensor,time,speed,min,max,last,count\n" : "sensor,time,speed\n");
+			for (int id : sensors) {
+				HistoryStore.read(id, from, to, resolution, csvRows(out, id));
+			}
+		} else {
+			if (callback != null) {
+				out.write(callback);
+				out.write('(');
+			}
+			JsonWriter w = new JsonWriter(out);
+			HistoryStore.Series series = new HistoryStore.Series(resolution);
+			w.beginObject();
+			for (int id : sensors) {
+				series.clear();
+				HistoryStore.read(id, from, to, resolution, series);
+				w.name(String.valueOf(id));
+				series.writeJson(w);
+			}
+			w.endObject();
+			w.flush();
+			if (callback != null) {
+				out.write(");");
+			}
+		}
+		out.close(); // only now is the response complete
+	}
+
+	private static HistoryStore.Sink csvRows(Writer out, int sensor) {
+		return new HistoryStore.Sink() {
+			@Override
+			public void sample(long epochSeconds, int speed) throws IOException {
+				out.write(sensor + "," + DataLogger.TIME_FORMAT.format(Instant.ofEpochSecond(epochSeconds)) + "," + speed + "\n");
+			}
+
+			@Override
+			public void bucket(Rollup.Bucket b) throws IOException {
+				out.write(sensor + "," + DataLogger.TIME_FORMAT.format(Instant.ofEpochSecond(b.start)) + "," + b.mean()
+						+ "," + b.min + "," + b.max + "," + b.last + "," + b.count + "\n");
+			}
+		};
+	}
+
+	/**
+	 * @return the requested rollup, or null for raw samples
+	 */
+	private static Rollup.Resolution resolution(String requested, long from, long to) {
+		if (requested == null || "auto".equalsIgnoreCase(requested)) {
+			return HistoryStore.resolutionFor(from, to);
+		}
+		if ("raw".equalsIgnoreCase(requested)) {
+			return null;
+		}
+		Rollup.Resolution resolution = Rollup.Resolution.fromLabel(requested);
+		if (resolution == null) {
+			throw new IllegalArgumentException("bad resolution: " + requested);
+		}
+		return resolution;
+	}
+
+	private static byte[] rangeJson(Map<Integer, HistoryStore.Series> result) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream(DEFAULT_BUFFER_SIZE);
+		try (JsonWriter w = new JsonWriter(new BufferedWriter(new OutputStreamWriter(b, StandardCharsets.UTF_8)))) {
+			w.beginObject();
+			for (Map.Entry<Integer, HistoryStore.Series> sensor : result.entrySet()) {
+				w.name(String.valueOf(sensor.getKey()));
+				sensor.getValue().writeJson(w);
+			}
+			w.endObject();
+		}
+		return b.toByteArray();
+	}
+
+	private static byte[] rangeCsv(Map<Integer, HistoryStore.Series> result) throws IOException {
+		boolean rolledUp = !result.isEmpty() && result.values().iterator().next().resolution() != null; // all alike
+		StringBuilder csv = new StringBuilder(DEFAULT_BUFFER_SIZE)
+				.append(rolledUp ? "sensor,time,speed,min,max,last,count\n" : "sensor,time,speed\n");
+		for (Map.Entry<Integer, HistoryStore.Series> sensor : result.entrySet()) {
+			HistoryStore.Series series = sensor.getValue();
+			for (int i = 0; i < series.size(); ++i) {
+				csv.append(sensor.getKey()).append(',')
+						.append(DataLogger.TIME_FORMAT.format(Instant.ofEpochSecond(series.epochSeconds(i)))).append(',')
+						.append(series.speed(i));
+				if (rolledUp) {
+					csv.append(',').append(series.min(i)).append(',').append(series.max(i))
+							.append(',').append(series.last(i)).append(',').append(series.count(i));
+				}
+				csv.append('\n');
+			}
+		}
+		return csv.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] jsonp(String callback, byte[] json) {
+		byte[] begin = (callback + "(").getBytes(StandardCharsets.UTF_8);
+		byte[] end = ");".getBytes(StandardCharsets.UTF_8);
+		byte[] wrapped = new byte[begin.length + json.length + end.length];
+		System.arraycopy(begin, 0, wrapped, 0, begin.length);
+		System.arraycopy(json, 0, wrapped, begin.length, json.length);
+		System.arraycopy(end, 0, wrapped, begin.length + json.length, end.length);
+		return wrapped;
 	}
 
 	private QueryContents parseQuery(String query) {
@@ -65,15 +367,23 @@ class TrafficHistoryFileRequestHandler implements HttpHandler {
 		return QueryContents.create(fields[0], fields[1]);
 	}
 
-	private String getFileData(String key) {
-//		System.out.println("got " + query);
+	private ResponseBody getFileData(String key) {
 		try {
-			String data = FILE_CACHE.get(key);
+			LiveSeries.Column live = LiveSeries.get(key);
+			if (live != null) {
+				return live.payload(); // the open month, straight from memory
+			}
+			ResponseBody data = FILE_CACHE.getIfPresent(key);
 			if (null == data) {
+				long flushes = FLUSHES.get();
+				long start = System.nanoTime();
 				data = loadFromFilesystem(key);
+				LOAD_SECONDS.observeSince(start);
+				FILE_CACHE.put(key, data);
+				if (FLUSHES.get() != flushes) {
+					FILE_CACHE.invalidate(key); // may already be stale
+				}
 			}
-			
-//			return data.replaceAll("\"", "'");
 			return data;
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
@@ -81,46 +391,39 @@ class TrafficHistoryFileRequestHandler implements HttpHandler {
 		}
 	}
 
-	private static String loadFromFilesystem(String query) throws IOException {
-		String data;
-		final Path path = FileSystems.getDefault().getPath(DataLogger.LOG_PATH, query + DataLogger.LOG_FILE_EXT);
-//		data = Files.readAllBytes(path);
-		Scanner s = new Scanner(path);
-		String header = s.nextLine(); // header
-		String[] fields = header.split(",");
+	static ResponseBody loadFromFilesystem(String query) throws IOException {
 		JsonArray dataArray = new JsonArray();
 		JsonArray timeArray = new JsonArray();
 		JsonArray speedArray = new JsonArray();
-		timeArray.add(fields[0]);
-		speedArray.add(fields[1]);
-		while (s.hasNext()) {
-			String[] value = s.nextLine().split(",");
-			timeArray.add(value[0]);
-			speedArray.add(value[1]);
+		SegmentFormat format = SegmentFormat.locate(query);
+		if (format == SegmentFormat.BINARY) {
+			BinarySegment.Reader segment = BinarySegment.openReader(format.pathFor(query));
+			timeArray.add("time");
+			speedArray.add("speed");
+			for (int i = 0; i < segment.count(); ++i) {
+				timeArray.add(DataLogger.TIME_FORMAT.format(Instant.ofEpochSecond(segment.epochSeconds(i))));
+				speedArray.add(String.valueOf(segment.speed(i)));
+			}
+		} else {
+			final Path path = SegmentFormat.CSV.pathFor(query);
+			Scanner s = new Scanner(path);
+			String header = s.nextLine(); // header
+			String[] fields = header.split(",");
+			timeArray.add(fields[0]);
+			speedArray.add(fields[1]);
+			while (s.hasNext()) {
+				String[] value = s.nextLine().split(",");
+				timeArray.add(value[0]);
+				speedArray.add(value[1]);
+			}
+			s.close();
 		}
 		dataArray.add(timeArray);
 		dataArray.add(speedArray);
-		s.close();
-		data = dataArray.toString();
-		FILE_CACHE.put(query, data);
-		return data;
-	}
-
-	private void copy(InputStream input, OutputStream output) throws IOException {
-	  copyLarge(input, output);
+		long lastModified = (format != null) ? format.pathFor(query).toFile().lastModified() : 0;
+		return ResponseBody.of(dataArray.toString().getBytes(StandardCharsets.UTF_8), lastModified);
 	}
 
-	private long copyLarge(InputStream input, OutputStream output) throws IOException {
-	   byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-	   long count = 0;
-	   int n;
-	   while (-1 != (n = input.read(buffer))) {
-	     output.write(buffer, 0, n);
-	     count += n;
-	   }
-	   return count;
-	}
-	
 	private static class QueryContents {
 		private final String dataKey;
 		private final String callback;
@@ -12,7 +12,7 @@ class TrafficLoggerTask {
 	private final ScheduledExecutorService scheduler =  Executors.newScheduledThreadPool(1);
 	
 	private void logEvery(final long delay, final TimeUnit durationUnit, final Checker trafficChecker) {
-		final Runnable logger = trafficChecker::force;
+		final Runnable logger = () -> trafficChecker.force(null);
 		
 		scheduler.scheduleAtFixedRate(logger, 0, delay, durationUnit);
 	}
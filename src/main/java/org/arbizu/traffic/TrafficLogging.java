@@ -1,73 +1,192 @@
 package org.arbizu.traffic;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Throwables;
 
-import com.google.common.collect.Lists;
 
 /**
- * Service to take enqueued logging requests and dispatch them to a writer
+ * Service to take enqueued logging requests and dispatch them to a writer.
+ *
+ * Samples go onto one bounded queue that long-lived writer threads drain into the
+ * {@link DataLogger}, so collection returns as soon as a sample is enqueued.
+ * Configured with:
+ * <ul>
+ *     <li>{@value #QUEUE_PROPERTY}: queue capacity, in sample sets</li>
+ *     <li>{@value #WRITERS_PROPERTY}: writer threads; samples are only written in
+ *     arrival order with one</li>
+ *     <li>{@value #BACKPRESSURE_PROPERTY}: what a full queue does with a new sample,
+ *     {@code block} (wait up to {@value #BLOCK_MILLIS_PROPERTY} ms, then drop it; a
+ *     negative wait never gives up), {@code drop-newest} or {@code drop-oldest}</li>
+ * </ul>
+ * Queued samples are drained to disk at shutdown.  The open month is also kept in
+ * memory, in {@link LiveSeries}.
  * @author alan
  *
  */
 class TrafficLogging {
-	private static final SimpleDateFormat LOG_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd:HH:mm:ss");
-	static void process(LinkedHashMap<Integer, TrafficDatum> trafficDataMap) {
-		ExecutorService executor = Executors.newSingleThreadExecutor();
-		LogTask t = new LogTask(trafficDataMap);
-		Future<Boolean> logInitFuture = executor.submit(t);
-		executor.shutdown();
-		try {
-			logInitFuture.get(10, TimeUnit.SECONDS);
-		} catch (Exception ee) {
-            ee.printStackTrace();
-        }
+	static final String QUEUE_PROPERTY = "traffic.ingest.queue";
+	static final String WRITERS_PROPERTY = "traffic.ingest.writers";
+	static final String BACKPRESSURE_PROPERTY = "traffic.ingest.backpressure";
+	static final String BLOCK_MILLIS_PROPERTY = "traffic.ingest.blockMillis";
+	private static final int BATCH_SIZE = 64;
+	private static final long DRAIN_TIMEOUT_SECONDS = 10;
+	private static final Metrics.Counter DROPPED = Metrics.counter("traffic_ingest_dropped_total",
+			"Polls dropped before reaching history");
+	private static final TrafficLogging INSTANCE = start();
+
+	private enum Backpressure { BLOCK, DROP_NEWEST, DROP_OLDEST }
+
+	private final BlockingQueue<Sample> queue;
+	private final Backpressure backpressure;
+	private final long blockMillis;
+	private final DataLogger dataLogger;
+	private final List<Thread> writers = new ArrayList<>();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean accepting = true;
+
+	private static class Sample {
+		final long epochSeconds;
+		final TrafficDatum[] data;
+
+		Sample(long epochSeconds, TrafficDatum[] data) {
+			this.epochSeconds = epochSeconds;
+			this.data = data;
+		}
+	}
+
+	private TrafficLogging(DataLogger dataLogger, int capacity, Backpressure backpressure, long blockMillis) {
+		this.dataLogger = dataLogger;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.backpressure = backpressure;
+		this.blockMillis = blockMillis;
 	}
-	
-	private static class LogTask implements Callable<Boolean> {
-		private final DataLogger logger;
-		private final LinkedList<String> data;
-		
-		LogTask(LinkedHashMap<Integer, TrafficDatum> dataMap) {
-			this.logger = DataLogger.getLogger(dataMap.size());
-			this.data = prepareLoggingData(dataMap);
+
+	private static TrafficLogging start() {
+		DataLogger.addListener(LiveSeries.INSTANCE);
+		TrafficLogging logging = new TrafficLogging(DataLogger.create(),
+				Integer.getInteger(QUEUE_PROPERTY, 256),
+				Backpressure.valueOf(System.getProperty(BACKPRESSURE_PROPERTY, "block").toUpperCase().replace('-', '_')),
+				Long.getLong(BLOCK_MILLIS_PROPERTY, 1000));
+		int writerCount = Integer.getInteger(WRITERS_PROPERTY, 1);
+		for (int i = 0; i < writerCount; ++i) {
+			Thread writer = new Thread(logging::drain, "ingest-writer-" + i);
+			writer.setDaemon(true);
+			writer.start();
+			logging.writers.add(writer);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(logging::shutdown, "ingest-shutdown"));
+		Metrics.callback(Metrics.callbacks("traffic_ingest_queued", "gauge", "Polls waiting to be logged"), logging.queue::size);
+		return logging;
+	}
+
+	/**
+	 * Queue one poll's samples for logging, stamped now
+	 * @param trafficData one datum per registry slot, null for sensors missing from the poll
+	 */
+	static void process(TrafficDatum[] trafficData) {
+		process(System.currentTimeMillis() / 1000, trafficData);
+	}
+
+	/**
+	 * Queue one poll's samples for logging under the given time
+	 */
+	static void process(long epochSeconds, TrafficDatum[] trafficData) {
+		INSTANCE.enqueue(new Sample(epochSeconds, trafficData));
+	}
+
+	private void enqueue(Sample sample) {
+		if (!accepting) {
+			dropped("shutting down");
+			return;
 		}
-		
-		@Override
-		public Boolean call() {
-			boolean initialized = logger.initialize();
-			if(initialized) {
+		switch (backpressure) {
+			case BLOCK:
 				try {
-					logger.logData(data);
-				} catch (IOException e) {
+					if (blockMillis < 0) {
+						queue.put(sample);
+					} else if (!queue.offer(sample, blockMillis, TimeUnit.MILLISECONDS)) {
+						dropped("queue full");
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					dropped("interrupted");
+				}
+				break;
+			case DROP_OLDEST:
+				while (!queue.offer(sample)) {
+					if (queue.poll() != null) {
+						dropped("queue full, dropped oldest");
+					}
+				}
+				break;
+			case DROP_NEWEST:
+				if (!queue.offer(sample)) {
+					dropped("queue full");
+				}
+				break;
+		}
+	}
+
+	/**
+	 * @return polls dropped before reaching history since startup
+	 */
+	static long dropped() {
+		return INSTANCE.dropped.get();
+	}
+
+	private void dropped(String why) {
+		DROPPED.inc();
+		long count = dropped.incrementAndGet();
+		System.err.println("ingest sample dropped (" + why + "), " + count + " dropped so far");
+	}
+
+	private void drain() {
+		List<Sample> batch = new ArrayList<>(BATCH_SIZE);
+		while (accepting || !queue.isEmpty()) {
+			Sample first;
+			try {
+				first = queue.poll(500, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (first == null) continue;
+			batch.add(first);
+			queue.drainTo(batch, BATCH_SIZE - 1);
+			for (Sample sample : batch) {
+				try {
+					dataLogger.logData(sample.epochSeconds, sample.data);
+				} catch (IOException | RuntimeException e) {
 					System.err.println("Error logging data: " + Throwables.getStackTraceAsString(e));
 				}
 			}
-			return initialized;
+			batch.clear();
 		}
 	}
-	
-	private static LinkedList<String> prepareLoggingData(LinkedHashMap<Integer, TrafficDatum> dataMap) {
-		LinkedList<String> dataSet = Lists.newLinkedList();
-		Date now = new Date();
-		for (Map.Entry<Integer, TrafficDatum> entry : dataMap.entrySet()) {
-			String logEntry = String.format("%s,%d", LOG_DATE_FORMAT.format(now), entry.getValue().getSpeed());
-			dataSet.add(logEntry);
+
+	/**
+	 * Stop taking samples, let the writers empty the queue, then close the segment files
+	 */
+	private void shutdown() {
+		accepting = false;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT_SECONDS);
+		for (Thread writer : writers) {
+			try {
+				writer.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (!queue.isEmpty()) {
+			System.err.println(queue.size() + " sample sets not written at shutdown");
 		}
-		return dataSet;
-		
+		dataLogger.close();
 	}
 }
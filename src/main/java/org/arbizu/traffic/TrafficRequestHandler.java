@@ -1,7 +1,7 @@
 package org.arbizu.traffic;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -15,6 +15,8 @@ import com.sun.net.httpserver.HttpHandler;
  * @author alan
  */
 class TrafficRequestHandler implements HttpHandler {
+	private static final byte[] JSONP_END = ");".getBytes(StandardCharsets.UTF_8);
+	private static final ResponseBody NO_COMMAND = ResponseBody.of("NO COMMAND".getBytes(StandardCharsets.UTF_8));
     private final Checker trafficChecker;
 	private final Splitter andSplitter = Splitter.on("&");
 	private final Splitter eqSplitter = Splitter.on("=");
@@ -34,54 +36,61 @@ class TrafficRequestHandler implements HttpHandler {
 	public void handle(HttpExchange t) throws IOException {
 		t.getRequestBody();
 		Command command = parseGetParams(t);
-		String response = dispatch(trafficChecker, command); 
-		if (command.doSetJsContentType()) {
-			Headers responseHeaders = t.getResponseHeaders();
+		ResponseBody response = dispatch(trafficChecker, command, queryParam(t, "CORRIDOR"));
+		Headers responseHeaders = t.getResponseHeaders();
+		responseHeaders.set("X-Snapshot-Age", String.valueOf(trafficChecker.snapshotAgeSeconds()));
+		responseHeaders.set("X-Refresh-Status", trafficChecker.lastRefreshOutcome().toString());
+		responseHeaders.set("Cache-Control", (command == Command.FORCE) ? "no-cache" : "max-age=" + trafficChecker.maxAgeSeconds());
+		if (command != null && command.doSetJsContentType()) {
 			responseHeaders.set("Content-Type", "text/javascript");
-			String callback = command.getCallback();
-            response = callback + "(" + response + ");";
+			byte[] callback = (queryParam(t, "CALLBACK") + "(").getBytes(StandardCharsets.UTF_8);
+			response.send(t, callback, JSONP_END);
+		} else {
+			response.send(t);
 		}
-		t.sendResponseHeaders(200, response.length());
-		OutputStream os = t.getResponseBody();
-		os.write(response.getBytes());
-		os.close();
 	}
 	
 	private Command parseGetParams(HttpExchange exchange) {
 		String query = exchange.getRequestURI().getQuery();
 		Iterable<String> keyValPairs = andSplitter.split(query);
 		Command c = null;
-		String callbackFunctionName = null;
 		for (String key : keyValPairs) {
 			if (Command.isValidCommand(key.toUpperCase())) {
-				c = Command.fromString(key);
-			} else if (key.contains("=")) {
-				Iterable<String> keyAndValue = eqSplitter.split(key);
-				Iterator<String> iterator = keyAndValue.iterator();
-				String nextKey = iterator.next().toUpperCase();
-				if ("CALLBACK".equals(nextKey)) {
-					callbackFunctionName = iterator.next();
-				}
+				c = Command.fromString(key.toUpperCase());
 			}
 		}
         assert c != null;
-        c.setCallback(callbackFunctionName);
 		return c;
 	}
 
-	private String dispatch(Checker trafficChecker, Command cmd) {
+	/**
+	 * Request values are kept out of the shared Command constants, since
+	 * handlers run concurrently on the request executor.
+	 * @return the value of the name=value parameter (name upper-cased), or null if absent
+	 */
+	private String queryParam(HttpExchange exchange, String name) {
+		for (String key : andSplitter.split(exchange.getRequestURI().getQuery())) {
+			Iterator<String> keyAndValue = eqSplitter.split(key).iterator();
+			if (name.equals(keyAndValue.next().toUpperCase()) && keyAndValue.hasNext()) {
+				return keyAndValue.next();
+			}
+		}
+		return null;
+	}
+
+	private ResponseBody dispatch(Checker trafficChecker, Command cmd, String corridor) {
 		if (cmd != null) {
-			return cmd.apply(trafficChecker);
+			return cmd.apply(trafficChecker, corridor);
 		} else {
-			return "NO COMMAND";
+			return NO_COMMAND;
 		}
 	}
 
 	private enum Command {
 		CHECK {
 			@Override 
-			public String apply(Checker c) {
-				return c.retrieve().toString();
+			public ResponseBody apply(Checker c, String corridor) {
+				return c.retrieve(corridor).array();
 			}
 		},
 		CHECKJS {
@@ -92,36 +101,29 @@ class TrafficRequestHandler implements HttpHandler {
 			 *    'callback_param_value( <response> );'
 			 */
 			@Override
-			public String apply(Checker c) {
-				return c.retrieveObject().toString();
+			public ResponseBody apply(Checker c, String corridor) {
+				return c.retrieve(corridor).object();
 			}
 			@Override
 			public boolean doSetJsContentType() {
 				return true;
 			}
-			@Override
-			public void setCallback(String functionName) {
-				this.callbackFunctionName = functionName;
-			}
 		},
 		FORCE {
 			@Override
-			public String apply(Checker c) {
-				return c.force().toString();
+			public ResponseBody apply(Checker c, String corridor) {
+				return c.force(corridor).array();
 			}
 		},
 		UNKNOWN {
 			@Override
-			public String apply(Checker c) {
-				return this.name();
+			public ResponseBody apply(Checker c, String corridor) {
+				return ResponseBody.of(this.name().getBytes(StandardCharsets.UTF_8));
 			}
 		};
 		
-		public abstract String apply(Checker c);
-		String callbackFunctionName = null;
+		public abstract ResponseBody apply(Checker c, String corridor);
 		public boolean doSetJsContentType() { return false; }
-		public void setCallback(String functionName) { /* default no-op */ }
-		public String getCallback() { return callbackFunctionName; }
 		
 		private static final Set<String> commandSet = initializeCommandNameSet();
 		
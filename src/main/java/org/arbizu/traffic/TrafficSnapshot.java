@@ -0,0 +1,88 @@
+package org.arbizu.traffic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * One load of traffic results, serialized and compressed once into every response
+ * shape so request handlers only ever write the prepared bytes.  Immutable; the
+ * byte arrays handed out are shared and must not be modified.
+ *
+ * @author alan
+ */
+class TrafficSnapshot {
+	private static final byte[] OBJECT_BEGIN = "{ \"DATA\": ".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] OBJECT_END = "}".getBytes(StandardCharsets.UTF_8);
+	private final ImmutableMap<String, Payload> corridors;
+	private final Payload defaultCorridor;
+	private final long loadedAtMillis;
+
+	/**
+	 * The response bodies for one corridor
+	 */
+	static class Payload {
+		private final ResponseBody array;
+		private final ResponseBody object;
+
+		private Payload(ResponseBody array, ResponseBody object) {
+			this.array = array;
+			this.object = object;
+		}
+
+		private static Payload of(byte[] array, long loadedAtMillis) {
+			byte[] object = new byte[OBJECT_BEGIN.length + array.length + OBJECT_END.length];
+			System.arraycopy(OBJECT_BEGIN, 0, object, 0, OBJECT_BEGIN.length);
+			System.arraycopy(array, 0, object, OBJECT_BEGIN.length, array.length);
+			System.arraycopy(OBJECT_END, 0, object, OBJECT_BEGIN.length + array.length, OBJECT_END.length);
+			return new Payload(ResponseBody.of(array, loadedAtMillis), ResponseBody.of(object, loadedAtMillis));
+		}
+
+		/** the bare JSON array, served by check and force */
+		ResponseBody array() { return array; }
+
+		/** the array wrapped as { "DATA": ... }, served by checkjs */
+		ResponseBody object() { return object; }
+	}
+
+	private TrafficSnapshot(ImmutableMap<String, Payload> corridors, long loadedAtMillis) {
+		this.corridors = corridors;
+		this.defaultCorridor = corridors.values().iterator().next();
+		this.loadedAtMillis = loadedAtMillis;
+	}
+
+	/**
+	 * @param corridorJson JSON array per corridor, default corridor first
+	 */
+	static TrafficSnapshot create(Map<String, byte[]> corridorJson) {
+		long loadedAtMillis = System.currentTimeMillis();
+		ImmutableMap.Builder<String, Payload> builder = ImmutableMap.builder();
+		corridorJson.forEach((name, json) -> builder.put(name, Payload.of(json, loadedAtMillis)));
+		return new TrafficSnapshot(builder.build(), loadedAtMillis);
+	}
+
+	/**
+	 * @return a payload describing a failure, in the same shapes as a real one; it's sent
+	 * uncacheable, so the failure isn't kept past the request that saw it
+	 */
+	static Payload error(String message) {
+		String quoted = new JsonPrimitive(String.valueOf(message)).toString();
+		byte[] array = String.format("[ERROR: \"Unable to load value %s\"]", message).getBytes(StandardCharsets.UTF_8);
+		byte[] object = ("{ \"ERROR\": " + quoted + "}").getBytes(StandardCharsets.UTF_8);
+		return new Payload(ResponseBody.uncacheable(array), ResponseBody.uncacheable(object));
+	}
+
+	/**
+	 * @param corridor corridor name, or null for the default corridor
+	 * @return the corridor's payload, or null if there's no such corridor
+	 */
+	Payload get(String corridor) {
+		return (corridor == null) ? defaultCorridor : corridors.get(corridor);
+	}
+
+	long getLoadedAtMillis() {
+		return loadedAtMillis;
+	}
+}
@@ -0,0 +1,70 @@
+package org.arbizu.traffic;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one HTTP client shared by every upstream reader.  Connections are pooled and
+ * kept alive between polls; connect, read and total timeouts keep a stalled
+ * upstream from holding a cache load forever.  Content decoding is left to the
+ * caller so the bytes actually on the wire can be counted.
+ *
+ * Timeouts are set with the {@code traffic.upstream.*} system properties.
+ *
+ * @author alan
+ */
+class UpstreamHttpClient {
+    private static final String USER_AGENT = "Mozilla/5.0";
+    private static final int CONNECT_TIMEOUT_MS = Integer.getInteger("traffic.upstream.connectTimeoutMs", 5000);
+    private static final int READ_TIMEOUT_MS = Integer.getInteger("traffic.upstream.readTimeoutMs", 15000);
+    private static final int TOTAL_TIMEOUT_MS = Integer.getInteger("traffic.upstream.totalTimeoutMs", 30000);
+    private static final int MAX_CONNECTIONS = Integer.getInteger("traffic.upstream.maxConnections", 8);
+
+    private static final CloseableHttpClient CLIENT = build();
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "upstream-deadlines");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private UpstreamHttpClient() { }
+
+    private static CloseableHttpClient build() {
+        PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+        pool.setMaxTotal(MAX_CONNECTIONS);
+        pool.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(CONNECT_TIMEOUT_MS)
+                .setConnectionRequestTimeout(CONNECT_TIMEOUT_MS)
+                .setSocketTimeout(READ_TIMEOUT_MS)
+                .build();
+        return HttpClients.custom()
+                .setConnectionManager(pool)
+                .setDefaultRequestConfig(config)
+                .setUserAgent(USER_AGENT)
+                .disableContentCompression()
+                .evictExpiredConnections()
+                .evictIdleConnections(60, TimeUnit.SECONDS)
+                .build();
+    }
+
+    static CloseableHttpClient get() {
+        return CLIENT;
+    }
+
+    /**
+     * Abort the request if it's still running after the total timeout.
+     * Cancel the returned future once the response has been consumed.
+     */
+    static ScheduledFuture<?> abortAfterTotalTimeout(HttpRequestBase request) {
+        return DEADLINES.schedule(request::abort, TOTAL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -1,42 +1,82 @@
 package org.arbizu.traffic;
 
 import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+import com.google.common.io.CountingInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Retrieve traffic data via URL
  * Created by alan on 3/13/17.
  */
 class WebDataReader implements TrafficDataReader {
+    private static final Metrics.Family<Metrics.Histogram> FETCH_SECONDS = Metrics.histograms("traffic_upstream_fetch_seconds",
+            "Upstream requests, from sending to the body read, by source", "source");
+    private static final Metrics.Family<Metrics.Counter> FETCH_BYTES = Metrics.counters("traffic_upstream_bytes_total",
+            "Upstream response body bytes as received, by source", "source");
+    private static final Metrics.Family<Metrics.Counter> FETCH_FAILURES = Metrics.counters("traffic_upstream_failures_total",
+            "Upstream requests that failed with an I/O error, by source", "source");
+    private static final int JOURNAL_BUFFER_BYTES = 256 * 1024;
     
     private boolean initialized;
     private final String url;
     private BufferedReader in;
     private OutputStreamWriter out;
-    private FileWriter fw;
     private ByteArrayOutputStream data;
     private String currentLine;
     private final AutoflushingLogger logger;
-    private String fallbackFile;
     private boolean persist = false;
+    private File persistFile;
+    private long journalSeconds = -1;
+    private String ifNoneMatch;
+    private String ifModifiedSince;
+    private int statusCode;
+    private String etag;
+    private String lastModified;
+    private final Metrics.Histogram fetchTime;
+    private final Metrics.Counter fetchBytes;
+    private final Metrics.Counter fetchFailures;
     
-    private WebDataReader(String url, AutoflushingLogger logger, String fallbackFile) {
+    private WebDataReader(String url, String source, AutoflushingLogger logger) {
         this.url = url;
         this.logger = logger;
-        this.fallbackFile = fallbackFile;
+        this.fetchTime = FETCH_SECONDS.labels(source);
+        this.fetchBytes = FETCH_BYTES.labels(source);
+        this.fetchFailures = FETCH_FAILURES.labels(source);
     }
     
     static WebDataReader create(DataSource.SourceType type, AutoflushingLogger logger) {
-        return new WebDataReader(type.getUrl(), logger, type.getFallback());
+        return new WebDataReader(type.getUrl(), type.name().toLowerCase(), logger);
     }
     
+    /**
+     * Make the next read a conditional GET.  A 304 leaves this reader empty,
+     * check {@link #getStatusCode()} before reading lines.
+     */
+    WebDataReader setValidators(String etag, String lastModified) {
+        this.ifNoneMatch = etag;
+        this.ifModifiedSince = lastModified;
+        return this;
+    }
+    
+    int getStatusCode() { return statusCode; }
+    String getEtag() { return etag; }
+    String getLastModified() { return lastModified; }
+    
     @Override
     public WebDataReader init() {
         initialized = initWriter();
@@ -49,30 +89,201 @@ class WebDataReader implements TrafficDataReader {
         return this;
     }
     
+    /**
+     * Persist the body to {@code file}, instead of a file named after the URL in the working directory
+     */
+    WebDataReader persistTo(File file) {
+        this.persistFile = file;
+        this.persist = true;
+        return this;
+    }
+    
+    /**
+     * Copy a 200 response's body to the {@link FeedJournal} under the given time.  The copy is
+     * taken as the body is read, so the handler still streams it.
+     */
+    WebDataReader journal(long epochSeconds) {
+        this.journalSeconds = epochSeconds;
+        return this;
+    }
+    
     @Override
     public WebDataReader read() {
+        try {
+            fetch(content -> {
+                try {
+                    read(new BufferedReader(content));
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                return null;
+            });
+        } catch (IOException ignored) {
+            // already logged, the reader is left empty
+        }
+        return this;
+    }
+    
+    @Override
+    public <T> T stream(ContentHandler<T> handler) throws Exception {
+        T result = fetch(handler);
+        if (statusCode != HttpStatus.SC_OK) {
+            throw new IOException("no content from " + url + ", res_code=" + statusCode);
+        }
+        return result;
+    }
+    
+    /**
+     * Run the request and hand a 200 response's decoded body to the handler.
+     * The body is only buffered when it also has to be persisted.
+     * @return the handler's result, or null for any other status
+     */
+    private <T> T fetch(ContentHandler<T> handler) throws IOException {
         HttpGet request = new HttpGet(url);
-        String userAgent = "Mozilla/5.0";
+        request.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        if (ifNoneMatch != null) request.setHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+        if (ifModifiedSince != null) request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, ifModifiedSince);
+        long start = System.nanoTime();
+        long wireBytes = 0;
+        T result = null;
+        ScheduledFuture<?> deadline = UpstreamHttpClient.abortAfterTotalTimeout(request);
         try (
-            CloseableHttpClient client = HttpClients.custom()
-                    .setUserAgent(userAgent)
-                    .build();
-            CloseableHttpResponse res = client.execute(request);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(res.getEntity().getContent()))
+            CloseableHttpResponse res = UpstreamHttpClient.get().execute(request)
         ) {
-            int statusCode = res.getStatusLine().getStatusCode();
-            if (statusCode == HttpStatus.SC_OK) {
-                read(reader);
-                logger.log(Level.INFO, "req={0},res_code={1},res_msg={2}", new Object[]{ request.toString(), res.getStatusLine().getStatusCode(), res.toString() });
-            } else if (fallbackFile != null) {
-                BufferedReader file = new BufferedReader(new InputStreamReader(WebDataReader.class.getResourceAsStream(fallbackFile)));
-                read(file);
-                logger.log(Level.INFO, "req={0},res_code={1},res_msg={2}", new Object[]{ "local-file-fallback", res.getStatusLine().getStatusCode(), res.toString() });
+            statusCode = res.getStatusLine().getStatusCode();
+            etag = headerValue(res.getFirstHeader(HttpHeaders.ETAG));
+            lastModified = headerValue(res.getFirstHeader(HttpHeaders.LAST_MODIFIED));
+            HttpEntity entity = res.getEntity();
+            if (statusCode == HttpStatus.SC_OK && entity != null) {
+                CountingInputStream wire = new CountingInputStream(entity.getContent());
+                InputStream body = decoded(entity, wire);
+                JournalCopy copy = null;
+                if (journalSeconds >= 0) {
+                    copy = new JournalCopy(FeedJournal.buffer(JOURNAL_BUFFER_BYTES));
+                    body = new TeeInputStream(body, copy);
+                }
+                try (Reader content = new InputStreamReader(body, StandardCharsets.UTF_8)) {
+                    result = handler.handle(persist ? persisted(content) : content);
+                }
+                wireBytes = wire.getCount();
+                if (copy != null) {
+                    FeedJournal.append(journalSeconds, copy.array(), copy.size());
+                }
+            } else {
+                EntityUtils.consumeQuietly(entity); // hand the connection back to the pool
             }
-        } catch (Exception ex) {
-            ex.printStackTrace();
+            fetchTime.observeSince(start);
+            fetchBytes.add(wireBytes);
+            long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            logger.log(Level.INFO, "req={0},res_code={1},res_msg={2},latency_ms={3,number,#},bytes={4,number,#}", new Object[]{ request.toString(), statusCode, res.toString(), latencyMs, wireBytes });
+        } catch (IOException ex) {
+            fetchTime.observeSince(start);
+            fetchFailures.inc();
+            long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            logger.log(Level.WARNING, "req={0},failed={1},latency_ms={2,number,#}", new Object[]{ request.toString(), ex, latencyMs });
+            throw ex;
+        } finally {
+            deadline.cancel(false);
         }
-        return this;
+        return result;
+    }
+    
+    /**
+     * Buffer the body so it can be written to the persist file, then read from the buffer.
+     */
+    private Reader persisted(Reader content) throws IOException {
+        String body = CharStreams.toString(content);
+        try (Writer file = new OutputStreamWriter(new FileOutputStream(persistFile()), StandardCharsets.UTF_8)) {
+            file.write(body);
+        } catch (IOException ioe) {
+            logger.log(Level.WARNING, "could not persist {0}: {1}", new Object[]{ url, ioe });
+        }
+        return new StringReader(body);
+    }
+    
+    private File persistFile() {
+        if (persistFile != null) {
+            return persistFile;
+        }
+        String[] fields = this.url.split("/");
+        return new File(fields[fields.length - 1]);
+    }
+    
+    /**
+     * A body for the {@link FeedJournal}, collected in a buffer it recycles and handed over as is
+     */
+    private static class JournalCopy extends ByteArrayOutputStream {
+        JournalCopy(byte[] buffer) {
+            super(0);
+            this.buf = buffer;
+        }
+        
+        byte[] array() {
+            return buf;
+        }
+    }
+    
+    /**
+     * Copies what's read through it.  Closing copies whatever the reader left unread,
+     * normally nothing: closing the response's stream reads the rest of it to free the
+     * connection anyway, so this only decodes it on the way.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream copy;
+        
+        TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) copy.write(b);
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) copy.write(b, off, n);
+            return n;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] skipped = new byte[(int) Math.min(n, 8192)]; // through read, so skipped bytes are copied too
+            int read = read(skipped, 0, skipped.length);
+            return Math.max(read, 0);
+        }
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                ByteStreams.exhaust(this);
+            } finally {
+                super.close();
+            }
+        }
+    }
+    
+    private static InputStream decoded(HttpEntity entity, InputStream wire) throws IOException {
+        Header encoding = entity.getContentEncoding();
+        if (encoding != null && encoding.getValue().toLowerCase().contains("gzip")) {
+            return new GZIPInputStream(wire);
+        }
+        return wire;
+    }
+    
+    private static String headerValue(Header header) {
+        return (header != null) ? header.getValue() : null;
     }
     
     private void read(BufferedReader reader) throws Exception {
@@ -88,24 +299,13 @@ class WebDataReader implements TrafficDataReader {
     private boolean initWriter() {
         data = new ByteArrayOutputStream(INIT_BUFFER_SIZE_BYTES);
         out = new OutputStreamWriter(data);
-        if (persist) {
-            String[] fields = this.url.split("/");
-            try {
-                fw = new FileWriter(fields[fields.length - 1]);
-            } catch (IOException ioe) {
-                persist = false;
-            }
-        }
         return true;
     }
     
     @Override
     public void store(String s) throws Exception {
         Preconditions.checkState(initialized);
-        if (persist) {
-            fw.write(s);
-        }
-        out.write(s);
+        out.write(s); // a persisted body is written whole by fetch, not line by line here
     }
     
     @Override
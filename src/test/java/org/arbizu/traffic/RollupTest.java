@@ -0,0 +1,133 @@
+package org.arbizu.traffic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Rollup buckets over the days the clocks change, in a zone that has both changes
+ */
+public class RollupTest {
+	private static final ZoneId ZONE = ZoneId.of("America/Los_Angeles");
+	private static final LocalDate SPRING_FORWARD = LocalDate.of(2026, 3, 8); // 23 hours
+	private static final LocalDate FALL_BACK = LocalDate.of(2026, 11, 1); // 25 hours
+	private static final long SAMPLE_SECONDS = TimeUnit.MINUTES.toSeconds(15);
+	private static TimeZone savedZone;
+
+	@BeforeClass
+	public static void useZoneAndStore() throws IOException {
+		savedZone = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone(ZONE));
+		Path dir = Files.createTempDirectory("rollup-test");
+		dir.toFile().deleteOnExit();
+		System.setProperty(DataLogger.DIR_PROPERTY, dir.toString()); // before anything reads the store's location
+	}
+
+	@AfterClass
+	public static void restoreZone() {
+		TimeZone.setDefault(savedZone);
+	}
+
+	@Test
+	public void springForwardDayIsOneBucketFromLocalMidnight() {
+		checkDay(SPRING_FORWARD, 23);
+	}
+
+	@Test
+	public void fallBackDayIsOneBucketFromLocalMidnight() {
+		checkDay(FALL_BACK, 25);
+	}
+
+	@Test
+	public void hourlyBucketsHoldTheirSamplesAcrossBothChanges() {
+		for (LocalDate day : new LocalDate[] { SPRING_FORWARD, FALL_BACK }) {
+			long start = midnight(day);
+			long end = midnight(day.plusDays(1));
+			long previous = -1;
+			for (long t = start; t < end; t += SAMPLE_SECONDS) {
+				long bucket = Rollup.Resolution.HOURLY.bucketStart(t, ZONE);
+				assertTrue(t + " in bucket " + bucket, bucket <= t && t < bucket + 3600);
+				assertTrue("hourly buckets go backwards at " + t, bucket >= previous);
+				assertEquals(bucket + 3600, Rollup.Resolution.HOURLY.nextBucketStart(t, ZONE));
+				previous = bucket;
+			}
+		}
+	}
+
+	@Test
+	public void everySampleOfAChangeDayReachesTheDailyRollup() throws IOException {
+		assertArrayEquals(new int[] { 96, 92, 96 }, rolledUp("03-2026-0", SPRING_FORWARD));
+		assertArrayEquals(new int[] { 96, 100, 96 }, rolledUp("11-2026-0", FALL_BACK));
+	}
+
+	private static void checkDay(LocalDate day, int hours) {
+		long start = midnight(day);
+		long end = midnight(day.plusDays(1));
+		assertEquals(TimeUnit.HOURS.toSeconds(hours), end - start);
+		for (long t = start; t < end; t += SAMPLE_SECONDS) {
+			assertEquals("bucket of " + t, start, Rollup.Resolution.DAILY.bucketStart(t, ZONE));
+			assertEquals("next bucket after " + t, end, Rollup.Resolution.DAILY.nextBucketStart(t, ZONE));
+		}
+		assertEquals(end, Rollup.Resolution.DAILY.bucketStart(end, ZONE));
+	}
+
+	/**
+	 * Log a sample every 15 minutes from the day before {@code day} to the day after it
+	 * @return the daily rollup's sample counts, which the hourly one must agree with
+	 */
+	private static int[] rolledUp(String key, LocalDate day) throws IOException {
+		long from = midnight(day.minusDays(1));
+		long to = midnight(day.plusDays(2));
+		int samples = 0;
+		try (SegmentWriter writer = Rollup.rollingUp(key, new DiscardingWriter())) {
+			for (long t = from; t < to; t += SAMPLE_SECONDS) {
+				writer.append(t, 60, null);
+				++samples;
+			}
+		}
+		Rollup.Reader days = Rollup.openReader(Rollup.Resolution.DAILY.pathFor(key));
+		int[] daily = new int[days.count()];
+		for (int i = 0; i < daily.length; ++i) {
+			assertEquals(midnight(day.plusDays(i - 1)), days.bucketStart(i));
+			daily[i] = days.sampleCount(i);
+		}
+		Rollup.Reader hours = Rollup.openReader(Rollup.Resolution.HOURLY.pathFor(key));
+		int hourly = 0;
+		for (int i = 0; i < hours.count(); ++i) {
+			hourly += hours.sampleCount(i);
+		}
+		assertEquals(samples, hourly);
+		return daily;
+	}
+
+	private static long midnight(LocalDate day) {
+		return day.atStartOfDay(ZONE).toEpochSecond();
+	}
+
+	/** the raw segment, which this test doesn't look at */
+	private static class DiscardingWriter implements SegmentWriter {
+		@Override
+		public void append(long epochSeconds, int speed, String incident) { }
+
+		@Override
+		public void flush() { }
+
+		@Override
+		public void sync() { }
+
+		@Override
+		public void close() { }
+	}
+}